@@ -0,0 +1,54 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j;
+
+import java.io.IOException;
+
+/**
+ * Signals that a document exceeded one of the configured resource limits
+ * and was abandoned.
+ *
+ * @author Hidekatsu Izuno
+ */
+public class CMarkLimitException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Kinds of resource limits.
+	 */
+	public enum Limit {
+		/** The number of input characters. */
+		INPUT_LENGTH,
+		/** The number of nodes in a document. */
+		NODE_COUNT,
+		/** The number of output characters. */
+		OUTPUT_LENGTH,
+		/** The time spent on a document. */
+		TIMEOUT
+	}
+
+	private final Limit limit;
+
+	/**
+	 * Constructs an exception for an exceeded limit.
+	 *
+	 * @param limit the exceeded limit.
+	 * @param message a detail message.
+	 */
+	public CMarkLimitException(Limit limit, String message) {
+		super(message);
+		this.limit = limit;
+	}
+
+	/**
+	 * Gets the exceeded limit.
+	 *
+	 * @return the exceeded limit.
+	 */
+	public Limit limit() {
+		return limit;
+	}
+}
@@ -6,6 +6,11 @@
 package net.arnx.commonmark4j;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Defines the requirements for an object that can be used as a CommonMark node.
@@ -73,4 +78,51 @@ public interface CMarkNode extends Iterable<CMarkNode> {
 	 * Iterates a node tree from this node.
 	 */
 	public Iterator<CMarkNode> iterator();
+
+	/**
+	 * Creates a spliterator over this node and its descendants in document order.
+	 * Unlike {@link #iterator()}, it does not go on past this node's subtree.
+	 * It splits between children and reports exact sizes, so that parallel
+	 * streams divide the tree evenly. The tree must not be modified meanwhile.
+	 * <p>
+	 * The default implementation walks the subtree with {@link #firstChild()},
+	 * {@link #next()} and {@link #parent()}, and neither splits nor knows its size.
+	 *
+	 * @return a spliterator over this node and its descendants
+	 */
+	@Override
+	public default Spliterator<CMarkNode> spliterator() {
+		CMarkNode root = this;
+		return Spliterators.spliteratorUnknownSize(new Iterator<CMarkNode>() {
+			private CMarkNode current = root;
+
+			@Override
+			public boolean hasNext() {
+				return current != null;
+			}
+
+			@Override
+			public CMarkNode next() {
+				CMarkNode node = current;
+				if (node == null) {
+					throw new NoSuchElementException();
+				}
+				CMarkNode following = node.firstChild();
+				for (CMarkNode n = node; following == null && n != root; n = n.parent()) {
+					following = n.next();
+				}
+				current = following;
+				return node;
+			}
+		}, Spliterator.ORDERED | Spliterator.NONNULL);
+	}
+
+	/**
+	 * Streams this node and its descendants in document order.
+	 *
+	 * @return a sequential stream, which may be made parallel
+	 */
+	public default Stream<CMarkNode> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
 }
@@ -30,6 +30,7 @@ public interface CMarkParser {
 	 *
 	 * @param reader a source.
 	 * @return a root node.
+	 * @throws CMarkLimitException a limit is exceeded.
 	 * @throws IOException an I/O error occures.
 	 */
 	public CMarkNode parse(BufferedReader reader) throws IOException;
@@ -6,8 +6,11 @@
 package net.arnx.commonmark4j;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 import net.arnx.commonmark4j.impl.HtmlRenderer;
+import net.arnx.commonmark4j.impl.Utf8Output;
 
 /**
  * Defines the requirements for an object that can be used as a CommonMark renderer.
@@ -29,7 +32,44 @@ public interface CMarkRenderer {
 	 *
 	 * @param node a root node.
 	 * @param out a destination.
+	 * @throws CMarkLimitException a limit is exceeded.
 	 * @throws IOException an I/O error occures.
 	 */
 	public void render(CMarkNode node, Appendable out) throws IOException;
+
+	/**
+	 * Render CommonMark contents as UTF-8 bytes, without a Writer.
+	 * The stream is flushed but not closed.
+	 *
+	 * @param node a root node.
+	 * @param out a destination.
+	 * @throws CMarkLimitException a limit is exceeded.
+	 * @throws IOException an I/O error occures.
+	 */
+	public default void renderUtf8(CMarkNode node, OutputStream out) throws IOException {
+		Utf8Output output = new Utf8Output(out);
+		try {
+			render(node, output);
+		} finally {
+			output.flush();
+		}
+	}
+
+	/**
+	 * Render CommonMark contents as UTF-8 bytes to a channel.
+	 * The channel is not closed.
+	 *
+	 * @param node a root node.
+	 * @param out a destination.
+	 * @throws CMarkLimitException a limit is exceeded.
+	 * @throws IOException an I/O error occures.
+	 */
+	public default void renderUtf8(CMarkNode node, WritableByteChannel out) throws IOException {
+		Utf8Output output = new Utf8Output(out);
+		try {
+			render(node, output);
+		} finally {
+			output.flush();
+		}
+	}
 }
@@ -7,8 +7,10 @@ package net.arnx.commonmark4j;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStream;
 
 import net.arnx.commonmark4j.impl.Transformer;
+import net.arnx.commonmark4j.impl.Utf8Output;
 
 /**
  * Defines the requirements for an object that can be used as a CommonMark transformer.
@@ -73,12 +75,116 @@ public interface CMarkTransformer {
 	 */
 	public CMarkTransformer time(boolean value);
 
+	/**
+	 * Sets a maximum nesting depth of block quotes and list items. The default depth is 100.
+	 * Markers nested deeper than this are treated as literal text.
+	 *
+	 * @param depth a maximum nesting depth.
+	 * @return this instance
+	 * @throws UnsupportedOperationException the implementation does not support this option.
+	 */
+	public default CMarkTransformer maxNesting(int depth) {
+		throw new UnsupportedOperationException("maxNesting");
+	}
+
+	/**
+	 * Sets a maximum number of input characters. By default, there is no limit.
+	 *
+	 * @param length a maximum number of input characters.
+	 * @return this instance
+	 * @throws UnsupportedOperationException the implementation does not support this option.
+	 */
+	public default CMarkTransformer maxInputLength(long length) {
+		throw new UnsupportedOperationException("maxInputLength");
+	}
+
+	/**
+	 * Sets a maximum number of nodes created for a document, including text nodes
+	 * later merged into others. By default, there is no limit.
+	 *
+	 * @param count a maximum number of nodes.
+	 * @return this instance
+	 * @throws UnsupportedOperationException the implementation does not support this option.
+	 */
+	public default CMarkTransformer maxNodes(long count) {
+		throw new UnsupportedOperationException("maxNodes");
+	}
+
+	/**
+	 * Sets a maximum number of output characters. By default, there is no limit.
+	 * Literal text is checked against the limit before it is written, but escaping
+	 * and the markup of one node may go past it before the transformation stops.
+	 *
+	 * @param length a maximum number of output characters.
+	 * @return this instance
+	 * @throws UnsupportedOperationException the implementation does not support this option.
+	 */
+	public default CMarkTransformer maxOutputLength(long length) {
+		throw new UnsupportedOperationException("maxOutputLength");
+	}
+
+	/**
+	 * Sets a time limit for transforming a document. By default, there is no limit.
+	 *
+	 * @param millis a time limit in milliseconds, or 0 for no limit.
+	 * @return this instance
+	 * @throws UnsupportedOperationException the implementation does not support this option.
+	 */
+	public default CMarkTransformer timeout(long millis) {
+		throw new UnsupportedOperationException("timeout");
+	}
+
+	/**
+	 * Sets a number of top-level blocks to transform. Input after these blocks is not read,
+	 * so reference definitions there are not used. By default, all blocks are transformed.
+	 *
+	 * @param count a number of top-level blocks, or 0 for all.
+	 * @return this instance
+	 * @throws UnsupportedOperationException the implementation does not support this option.
+	 */
+	public default CMarkTransformer excerptBlocks(int count) {
+		throw new UnsupportedOperationException("excerptBlocks");
+	}
+
+	/**
+	 * Sets a length of block text to transform. Input is not read after the point where
+	 * the text reaches this length, even within a line, so reference definitions after it
+	 * are not used. The text is counted before inline parsing, so it includes inline markup.
+	 * By default, all text is transformed.
+	 *
+	 * @param length a number of characters, or 0 for all.
+	 * @return this instance
+	 * @throws UnsupportedOperationException the implementation does not support this option.
+	 */
+	public default CMarkTransformer excerptLength(long length) {
+		throw new UnsupportedOperationException("excerptLength");
+	}
+
 	/**
 	 * Transforms a CommmonMark text to a specified format.
 	 *
 	 * @param in a source
 	 * @param out a destination
+	 * @throws CMarkLimitException a limit is exceeded.
 	 * @throws IOException an I/O error occures.
 	 */
 	public void transform(BufferedReader in, Appendable out) throws IOException;
+
+	/**
+	 * Transforms a CommmonMark text to a specified format, written as
+	 * UTF-8 bytes without a Writer. The stream is flushed but not closed.
+	 *
+	 * @param in a source
+	 * @param out a destination
+	 * @throws CMarkLimitException a limit is exceeded.
+	 * @throws IOException an I/O error occures.
+	 */
+	public default void transformUtf8(BufferedReader in, OutputStream out) throws IOException {
+		Utf8Output output = new Utf8Output(out);
+		try {
+			transform(in, output);
+		} finally {
+			output.flush();
+		}
+	}
 }
@@ -6,10 +6,9 @@
 package net.arnx.commonmark4j;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -101,21 +100,20 @@ public final class Main {
 				.format(format);
 
 		BufferedReader reader = null;
-		BufferedWriter writer = null;
+		OutputStream out = null;
 		try {
 			reader = (!src.equals("-")) ? Files.newBufferedReader(Paths.get(src)) :
 				new BufferedReader(new InputStreamReader(System.in));
-			writer = (dest != null) ? Files.newBufferedWriter(Paths.get(dest)) :
-				new BufferedWriter(new OutputStreamWriter(System.out));
+			out = (dest != null) ? Files.newOutputStream(Paths.get(dest)) : System.out;
 
-			processor.transform(reader, writer);
+			processor.transformUtf8(reader, out);
 		} finally {
 			try {
-				if (writer != null) {
+				if (out != null) {
 					if (!src.equals("-")) {
-						writer.close();
+						out.close();
 					} else {
-						writer.flush();
+						out.flush();
 					}
 				}
 			} finally {
@@ -0,0 +1,398 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import net.arnx.commonmark4j.CMarkNodeType;
+
+// Writes a document in a binary form, and reads it back as a frozen
+// document (see CompactDocument), for caches of parsed documents.  The
+// form is the arrays of the compact document, big-endian:
+//
+//   int     magic "CM4J"
+//   int     version
+//   int     node count, record count, text length in chars and in bytes
+//   byte[]  node kinds (CMarkNodeType ordinals), padded to 4 bytes
+//   int[]   first child, next sibling and parent numbers, record starts
+//   int[]   records: source positions, list data, levels and strings
+//   int[]   text index: the byte offset of every 64th char of the text
+//   byte[]  the text that strings are offsets into
+//
+// The text is written like UTF-8, but a char at a time, so that
+// unpaired surrogates, which entities can produce, come back as they
+// were.  The index lets a string be decoded from the bytes without
+// decoding the text before it, so a document can also be read in place
+// (see Mapped).
+public final class BinaryFormat {
+	private static final int MAGIC = 0x434D344A;
+	static final int VERSION = 2;
+	private static final int INDEX_SHIFT = 6;
+
+	private static final CMarkNodeType[] TYPES = CMarkNodeType.values();
+
+	// where the strings are in the records of each kind of node
+	private static final int[] NO_STRINGS = {};
+	private static final int[] LITERAL = { 0 };
+	private static final int[] LINK_STRINGS = { 0, 2 };
+	private static final int[] CODE_BLOCK_STRINGS = { 4, 6 };
+
+	private BinaryFormat() {
+	}
+
+	// Write node and its descendants.  A node that is not frozen is
+	// frozen first.
+	public static void write(Node node, OutputStream out) throws IOException {
+		CompactDocument doc = ((CompactDocument.NodeView)node.freeze()).document().onHeap();
+		String text = doc.text + doc.extra;
+		int[] index = new int[(text.length() >> INDEX_SHIFT) + 1];
+		int textBytes = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if ((i & ((1 << INDEX_SHIFT) - 1)) == 0) {
+				index[i >> INDEX_SHIFT] = textBytes;
+			}
+			char c = text.charAt(i);
+			textBytes += (c < 0x80) ? 1 : (c < 0x800) ? 2 : 3;
+		}
+		if ((text.length() & ((1 << INDEX_SHIFT) - 1)) == 0) {
+			index[text.length() >> INDEX_SHIFT] = textBytes;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(doc.size);
+		buf.putInt(doc.records.length);
+		buf.putInt(text.length());
+		buf.putInt(textBytes);
+		for (int i = 0; i < doc.size; i++) {
+			ensure(buf, out, 1);
+			buf.put(doc.types[i]);
+		}
+		for (int i = doc.size; i % 4 != 0; i++) {
+			ensure(buf, out, 1);
+			buf.put((byte)0);
+		}
+		putInts(buf, out, doc.firstChildren);
+		putInts(buf, out, doc.nexts);
+		putInts(buf, out, doc.parents);
+		putInts(buf, out, doc.data);
+		putInts(buf, out, doc.records);
+		putInts(buf, out, index);
+		for (int i = 0; i < text.length(); i++) {
+			ensure(buf, out, 3);
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				buf.put((byte)c);
+			} else if (c < 0x800) {
+				buf.put((byte)(0xC0 | (c >> 6)));
+				buf.put((byte)(0x80 | (c & 0x3F)));
+			} else {
+				buf.put((byte)(0xE0 | (c >> 12)));
+				buf.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+				buf.put((byte)(0x80 | (c & 0x3F)));
+			}
+		}
+		out.write(buf.array(), 0, buf.position());
+	}
+
+	private static void ensure(ByteBuffer buf, OutputStream out, int n) throws IOException {
+		if (buf.remaining() < n) {
+			out.write(buf.array(), 0, buf.position());
+			buf.clear();
+		}
+	}
+
+	private static void putInts(ByteBuffer buf, OutputStream out, int[] values) throws IOException {
+		for (int i = 0; i < values.length; i++) {
+			ensure(buf, out, 4);
+			buf.putInt(values[i]);
+		}
+	}
+
+	// Read a document written by write from a file, mapping it into
+	// memory.
+	public static Node read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	// Read a document written by write, from the position of buffer on.
+	// Throws IOException if it is not one, or of another version.
+	public static Node read(ByteBuffer buffer) throws IOException {
+		try {
+			Mapped mapped = map(buffer);
+			check(mapped);
+			return new CompactDocument(mapped).onHeap().root();
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("broken binary document", e);
+		}
+	}
+
+	// Returns a document that reads a document written by write in place
+	// from buffer, which must not change while the document is in use,
+	// decoding strings only when they are asked for.  Unlike read, this
+	// does not check the document, so the buffer must come from write.
+	static Node view(ByteBuffer buffer) throws IOException {
+		return new CompactDocument(map(buffer)).root();
+	}
+
+	private static Mapped map(ByteBuffer buffer) throws IOException {
+		ByteBuffer buf = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+		try {
+			if (buf.getInt(0) != MAGIC) {
+				throw new IOException("not a binary document");
+			}
+			int version = buf.getInt(4);
+			if (version != VERSION) {
+				throw new IOException("unsupported binary document version: " + version);
+			}
+			int size = buf.getInt(8);
+			int recordCount = buf.getInt(12);
+			int textLength = buf.getInt(16);
+			int textBytes = buf.getInt(20);
+			if (size <= 0 || recordCount < 0 || textLength < 0 || textBytes < textLength ||
+					24L + (size + 3) / 4 * 4 + 16L * size + 4L * recordCount +
+					4L * ((textLength >> INDEX_SHIFT) + 1) + textBytes > buf.limit()) {
+				throw new IOException("broken binary document");
+			}
+			return new Mapped(buf, size, recordCount, textLength, textBytes);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("broken binary document", e);
+		}
+	}
+
+	// The arrays of a document written by write, read from where they
+	// are in a buffer rather than copied out of it.  Reads take absolute
+	// positions, so one buffer can be read by several threads.
+	static final class Mapped {
+		final ByteBuffer buffer;
+		final int size;
+		final int recordCount;
+		final int textLength;
+		final int textBytes;
+		final int typesAt;
+		final int firstChildrenAt;
+		final int nextsAt;
+		final int parentsAt;
+		final int dataAt;
+		final int recordsAt;
+		final int indexAt;
+		final int textAt;
+
+		Mapped(ByteBuffer buffer, int size, int recordCount, int textLength, int textBytes) {
+			this.buffer = buffer;
+			this.size = size;
+			this.recordCount = recordCount;
+			this.textLength = textLength;
+			this.textBytes = textBytes;
+			this.typesAt = 24;
+			this.firstChildrenAt = this.typesAt + (size + 3) / 4 * 4;
+			this.nextsAt = this.firstChildrenAt + 4 * size;
+			this.parentsAt = this.nextsAt + 4 * size;
+			this.dataAt = this.parentsAt + 4 * size;
+			this.recordsAt = this.dataAt + 4 * size;
+			this.indexAt = this.recordsAt + 4 * recordCount;
+			this.textAt = this.indexAt + 4 * ((textLength >> INDEX_SHIFT) + 1);
+		}
+
+		byte type(int i) {
+			return buffer.get(typesAt + i);
+		}
+
+		int firstChild(int i) {
+			return buffer.getInt(firstChildrenAt + 4 * i);
+		}
+
+		int next(int i) {
+			return buffer.getInt(nextsAt + 4 * i);
+		}
+
+		int parent(int i) {
+			return buffer.getInt(parentsAt + 4 * i);
+		}
+
+		int data(int i) {
+			return buffer.getInt(dataAt + 4 * i);
+		}
+
+		int record(int r) {
+			return buffer.getInt(recordsAt + 4 * r);
+		}
+
+		// The length chars of the text from offset on.
+		String string(int offset, int length) {
+			int at = textAt + buffer.getInt(indexAt + 4 * (offset >> INDEX_SHIFT));
+			int skip = offset & ((1 << INDEX_SHIFT) - 1);
+			// most text is ASCII, a byte a char, so try reading it in one go
+			int n = Math.min(skip + length, textAt + textBytes - at);
+			byte[] bytes = new byte[n];
+			ByteBuffer buf = buffer.duplicate();
+			buf.position(at);
+			buf.get(bytes);
+			int ascii = 0;
+			while (ascii < n && bytes[ascii] >= 0) {
+				ascii++;
+			}
+			if (ascii == skip + length) {
+				return new String(bytes, skip, length, StandardCharsets.ISO_8859_1);
+			}
+			for (; skip > 0; skip--) {
+				int b = buffer.get(at);
+				at += (b >= 0) ? 1 : ((b & 0xE0) == 0xC0) ? 2 : 3;
+			}
+			char[] chars = new char[length];
+			decode(at, chars);
+			return new String(chars);
+		}
+
+		// Decode chars.length chars from the byte at on, returning the
+		// byte after them.
+		int decode(int at, char[] chars) {
+			for (int n = 0; n < chars.length; n++) {
+				int b = buffer.get(at++);
+				if (b >= 0) {
+					chars[n] = (char)b;
+				} else if ((b & 0xE0) == 0xC0) {
+					chars[n] = (char)(((b & 0x1F) << 6) | (buffer.get(at++) & 0x3F));
+				} else {
+					chars[n] = (char)(((b & 0x0F) << 12) | ((buffer.get(at++) & 0x3F) << 6) | (buffer.get(at++) & 0x3F));
+				}
+			}
+			return at;
+		}
+
+		String text() {
+			char[] chars = new char[textLength];
+			decode(textAt, chars);
+			return new String(chars);
+		}
+	}
+
+	// Check that the arrays make a tree numbered in document order whose
+	// parents, records and strings are in range, and that the text index
+	// points at the chars it is for, so that nothing read from them fails
+	// later.
+	private static void check(Mapped m) throws IOException {
+		int size = m.size;
+		int[] parents = new int[size];
+		parents[0] = CompactDocument.NONE;
+		for (int i = 1; i < size; i++) {
+			parents[i] = -2;
+		}
+		for (int i = 0; i < size; i++) {
+			byte type = m.type(i);
+			if (type < 0 || type >= TYPES.length) {
+				throw new IOException("broken binary document: node kind " + type);
+			}
+			int prev = i;
+			for (int child = m.firstChild(i); child != CompactDocument.NONE; child = m.next(child)) {
+				if (child <= prev || child >= size || parents[child] != -2) {
+					throw new IOException("broken binary document: node " + i);
+				}
+				parents[child] = i;
+				prev = child;
+			}
+
+			int r = m.data(i);
+			int[] strings;
+			int length;
+			switch (TYPES[type]) {
+			case TEXT:
+			case CODE:
+			case HTML:
+				length = 2;
+				strings = LITERAL;
+				break;
+			case LINK:
+			case IMAGE:
+				length = 4;
+				strings = LINK_STRINGS;
+				break;
+			case DOCUMENT:
+			case BLOCK_QUOTE:
+			case HORIZONTAL_RULE:
+				length = 4;
+				strings = NO_STRINGS;
+				break;
+			case LIST:
+			case ITEM:
+				length = 6;
+				strings = NO_STRINGS;
+				break;
+			case PARAGRAPH:
+			case HEADER:
+				length = 5;
+				strings = NO_STRINGS;
+				break;
+			case CODE_BLOCK:
+			case HTML_BLOCK:
+				length = 8;
+				strings = CODE_BLOCK_STRINGS;
+				break;
+			default:
+				length = 0;
+				strings = NO_STRINGS;
+				break;
+			}
+			if (length == 0 ? r != CompactDocument.NONE : (r < 0 || r > m.recordCount - length)) {
+				throw new IOException("broken binary document: node " + i);
+			}
+			for (int at : strings) {
+				int offset = m.record(r + at);
+				int len = m.record(r + at + 1);
+				if (offset != CompactDocument.NONE && (offset < 0 || len < 0 || offset > m.textLength - len)) {
+					throw new IOException("broken binary document: node " + i);
+				}
+			}
+			if (length == 6 && m.record(r + 5) != CompactDocument.NONE && (m.record(r + 5) & 0xFF) >= ListType.values().length) {
+				throw new IOException("broken binary document: node " + i);
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			if (parents[i] == -2 || parents[i] != m.parent(i)) {
+				throw new IOException("broken binary document: node " + i);
+			}
+		}
+
+		// every subtree must be a run of numbers, as spliterators take it to be
+		for (int i = 0; i < size; i++) {
+			int following = m.firstChild(i);
+			for (int j = i; following == CompactDocument.NONE && j != CompactDocument.NONE; j = parents[j]) {
+				following = m.next(j);
+			}
+			if (following != ((i + 1 < size) ? i + 1 : CompactDocument.NONE)) {
+				throw new IOException("broken binary document: node " + i);
+			}
+		}
+
+		int at = 0;
+		for (int n = 0; n <= m.textLength; n++) {
+			if ((n & ((1 << INDEX_SHIFT) - 1)) == 0 && m.buffer.getInt(m.indexAt + 4 * (n >> INDEX_SHIFT)) != at) {
+				throw new IOException("broken binary document: text index");
+			}
+			if (n < m.textLength) {
+				int b = m.buffer.get(m.textAt + at);
+				at += (b >= 0) ? 1 : ((b & 0xE0) == 0xC0) ? 2 : 3;
+				if (at > m.textBytes) {
+					throw new IOException("broken binary document: text");
+				}
+			}
+		}
+		if (at != m.textBytes) {
+			throw new IOException("broken binary document: text");
+		}
+	}
+}
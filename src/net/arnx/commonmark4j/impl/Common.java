@@ -46,13 +46,32 @@ class Common {
 
 	public static final String ESCAPABLE = "[!\"#$%&'()*+,./:;<=>?@\\[\\\\\\]^_`{|}~-]";
 
-	private static final Pattern reEntityOrEscapedChar = Pattern.compile("\\\\" + ESCAPABLE + '|' + ENTITY, Pattern.CASE_INSENSITIVE);
+	private static final boolean[] ESCAPABLE_CHARS = new boolean[128];
+
+	private static final boolean[] WHITESPACE_CHARS = new boolean[128];
 
-	private static final String XMLSPECIAL = "[&<>\"]";
+	static {
+		for (char c : "!\"#$%&'()*+,./:;<=>?@[\\]^_`{|}~-".toCharArray()) {
+			ESCAPABLE_CHARS[c] = true;
+		}
+		for (char c : " \t\n\f\r".toCharArray()) {
+			WHITESPACE_CHARS[c] = true;
+		}
+	}
 
-	private static final Pattern reXmlSpecial = Pattern.compile(XMLSPECIAL);
+	private static final Pattern reEntityOrEscapedChar = Pattern.compile("\\\\" + ESCAPABLE + '|' + ENTITY, Pattern.CASE_INSENSITIVE);
 
-	private static final Pattern reXmlSpecialOrEntity = Pattern.compile(ENTITY + '|' + XMLSPECIAL, Pattern.CASE_INSENSITIVE);
+	// What the characters special to XML are written as, by character;
+	// null for the rest.  Text and attribute values are escaped alike,
+	// as commonmark.js escapes quotes in text too.
+	private static final String[] XML_ESCAPES = new String['>' + 1];
+
+	static {
+		XML_ESCAPES['&'] = "&amp;";
+		XML_ESCAPES['<'] = "&lt;";
+		XML_ESCAPES['>'] = "&gt;";
+		XML_ESCAPES['"'] = "&quot;";
+	}
 
 	private static final Pattern reEntityPattern = Pattern.compile("&(?:([a-zA-Z0-9]+)|#[xX]([0-9a-fA-F]{1,8})|#([0-9]{1,8}));");
 
@@ -84,6 +103,39 @@ class Common {
 		return s;
 	}
 
+	/** Returns true if c can be backslash-escaped. */
+	public static boolean isEscapable(int c) {
+		return c >= 0 && c < ESCAPABLE_CHARS.length && ESCAPABLE_CHARS[c];
+	}
+
+	/** Returns true if c is a Unicode whitespace character (Zs, tab, newline, form feed or carriage return). */
+	public static boolean isWhitespace(int c) {
+		if (c < WHITESPACE_CHARS.length) {
+			return c >= 0 && WHITESPACE_CHARS[c];
+		}
+		return Character.getType(c) == Character.SPACE_SEPARATOR;
+	}
+
+	/** Returns true if c is an ASCII punctuation character or in the Unicode classes Pc, Pd, Pe, Pf, Pi, Po or Ps. */
+	public static boolean isPunctuation(int c) {
+		if (c < ESCAPABLE_CHARS.length) {
+			// the ASCII punctuation characters are exactly the escapable ones
+			return c >= 0 && ESCAPABLE_CHARS[c];
+		}
+		switch (Character.getType(c)) {
+		case Character.CONNECTOR_PUNCTUATION:
+		case Character.DASH_PUNCTUATION:
+		case Character.END_PUNCTUATION:
+		case Character.FINAL_QUOTE_PUNCTUATION:
+		case Character.INITIAL_QUOTE_PUNCTUATION:
+		case Character.OTHER_PUNCTUATION:
+		case Character.START_PUNCTUATION:
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	public static String normalizeURI(String uri) {
 		try {
 			return mdurlEncode(mdurlDecode(uri));
@@ -92,43 +144,102 @@ class Common {
 		}
 	}
 
-	private static String replaceUnsafeChar(String s) {
-		switch (s) {
-		case "&":
-			return "&amp;";
-		case "<":
-			return "&lt;";
-		case ">":
-			return "&gt;";
-		case "\"":
-			return "&quot;";
-		default:
-			return s;
+	public static String escapeXml(String s, boolean preserve_entities) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < XML_ESCAPES.length && XML_ESCAPES[c] != null) {
+				StringBuilder sb = new StringBuilder((int)(s.length() * 1.5));
+				try {
+					escapeXml(s, preserve_entities, sb);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return sb.toString();
+			}
 		}
+		return s;
 	}
 
-	public static String escapeXml(String s, boolean preserve_entities) {
-		Matcher m = reXmlSpecial.matcher(s);
-		if (m.find()) {
-			StringBuilder sb = new StringBuilder((int)(s.length() * 1.5));
-			if (preserve_entities) {
-				m = reXmlSpecialOrEntity.matcher(s);
-				m.find();
+	static int escapeXml(CharSequence s, Appendable out) throws IOException {
+		return escapeXml(s, false, out);
+	}
+
+	// Write s escaped as by escapeXml(s, preserve_entities) to out,
+	// copying the runs between special characters as they are, and
+	// return the number of characters written.
+	static int escapeXml(CharSequence s, boolean preserve_entities, Appendable out) throws IOException {
+		CharSequence source = s;
+		int start = 0;
+		int end = s.length();
+		if (s instanceof Slice) {
+			source = ((Slice)s).source;
+			start = ((Slice)s).start;
+			end = ((Slice)s).end;
+		}
+		int count = end - start;
+		int from = start;
+		for (int i = start; i < end; i++) {
+			char c = source.charAt(i);
+			String rep;
+			if (c >= XML_ESCAPES.length || (rep = XML_ESCAPES[c]) == null) {
+				continue;
 			}
-			int start = 0;
-			do {
-				if (start < m.start()) {
-					sb.append(s, start, m.start());
+			if (preserve_entities && c == '&') {
+				int len = entityLength(source, i, end);
+				if (len > 0) {
+					i += len - 1;
+					continue;
 				}
-				sb.append((m.group().length() == 1) ? replaceUnsafeChar(m.group()) : m.group());
-				start = m.end();
-			} while (m.find());
-			if (start < s.length()) {
-				sb.append(s, start, s.length());
 			}
-			return sb.toString();
+			out.append(source, from, i).append(rep);
+			count += rep.length() - 1;
+			from = i + 1;
 		}
-		return s;
+		out.append(source, from, end);
+		return count;
+	}
+
+	// The length of the entity (see ENTITY) at i in s, which is '&', or
+	// 0 if there is none.
+	static int entityLength(CharSequence s, int i, int end) {
+		int j = i + 1;
+		int from;
+		int max;
+		if (j < end && s.charAt(j) == '#') {
+			j++;
+			boolean hex = j < end && (s.charAt(j) == 'x' || s.charAt(j) == 'X');
+			if (hex) {
+				j++;
+			}
+			from = j;
+			max = j + 8;
+			while (j < end && j < max && (hex ? isHexDigit(s.charAt(j)) : isDigit(s.charAt(j)))) {
+				j++;
+			}
+		} else {
+			if (j >= end || !isLetter(s.charAt(j))) {
+				return 0;
+			}
+			j++;
+			from = j;
+			max = j + 31;
+			while (j < end && j < max && (isLetter(s.charAt(j)) || isDigit(s.charAt(j)))) {
+				j++;
+			}
+		}
+		return (j > from && j < end && s.charAt(j) == ';') ? j + 1 - i : 0;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isHexDigit(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
 	}
 
 	public static String decodeHTML(String s) {
@@ -0,0 +1,1132 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import net.arnx.commonmark4j.CMarkLimitException;
+import net.arnx.commonmark4j.CMarkNode;
+import net.arnx.commonmark4j.CMarkNodeType;
+import net.arnx.commonmark4j.impl.Node.BlockNode;
+import net.arnx.commonmark4j.impl.Node.Event;
+import net.arnx.commonmark4j.impl.Node.ListNode;
+import net.arnx.commonmark4j.impl.Node.NodeCursor;
+import net.arnx.commonmark4j.impl.Node.NodeWalker;
+import net.arnx.commonmark4j.impl.Node.ParagraphNode;
+
+// A read-only document kept in arrays instead of one object per node
+// (see Parser.Options.compact).  Nodes are numbered in document order,
+// the document itself being 0, so the nodes after a node in the
+// iteration order are simply the following numbers.  Per node there are
+// a kind, the parent, first child and next sibling numbers, and the
+// start of a record in records, or NONE for nodes without data:
+//
+//   TEXT, CODE, HTML:        literal
+//   LINK, IMAGE:             destination, title
+//   blocks:                  start line, start column, end line, end column,
+//     LIST, ITEM:            + list start, list flags (NONE without list data)
+//     PARAGRAPH, HEADER:     + level
+//     CODE_BLOCK, HTML_BLOCK:+ literal, info
+//
+// where a string is an offset into text, or past its end into extra, and
+// a length, the offset being NONE for null.  Nodes are read through
+// views, which cursors and walkers reuse from step to step.
+//
+// A document never changes once made: its fields are final, and derive
+// makes a new document that shares the arrays of its base and keeps its
+// changes aside, in a table sorted by node number of the edited nodes
+// and the nodes above them, their data, and the records and strings
+// added after those of the base.  So a document can be shared between
+// threads and rendered concurrently; Node.freeze makes one from any tree.
+//
+// A document may also read its arrays in place from a buffer in
+// BinaryFormat (see BinaryFormat.Mapped), the arrays here being null,
+// so that it takes no heap beyond the nodes asked for.  Strings are
+// then decoded as they are read.
+final class CompactDocument {
+	static final int NONE = -1;
+
+	private static final CMarkNodeType[] TYPES = CMarkNodeType.values();
+	private static final ListType[] LIST_TYPES = ListType.values();
+
+	final byte[] types;
+	final int[] parents;
+	final int[] firstChildren;
+	final int[] nexts;
+	final int[] data;
+	final int size;
+	final int[] records;
+	final int recordCount;
+	final String text;
+	final int textLength;
+	// strings at offsets from textLength on
+	final String extra;
+	final BinaryFormat.Mapped mapped;
+	// The changes of a derived document, or null: the document they were
+	// made to, with no changes of its own, the numbers of the nodes they
+	// touch, those nodes' data, and the records from recordCount on.
+	final CompactDocument base;
+	final int[] edited;
+	final int[] editedData;
+	final int[] editedRecords;
+	// The subtree hash of each node (see TreeDiff.hash), or of each edited
+	// node, the others hashing as in base, made when first asked for.
+	// Threads that make it at the same time make the same.
+	private volatile long[] hashes;
+	private volatile CompactDocument onHeap;
+
+	// Copy the tree under root.
+	CompactDocument(Node root) throws CMarkLimitException {
+		this(new Builder(root));
+	}
+
+	// A copy of the subtree of base at from, sharing its records.
+	private CompactDocument(CompactDocument base, int from) {
+		int end = base.end(from);
+		this.size = end - from;
+		this.types = Arrays.copyOfRange(base.types, from, end);
+		this.parents = new int[size];
+		this.firstChildren = new int[size];
+		this.nexts = new int[size];
+		for (int i = 0; i < size; i++) {
+			this.parents[i] = (i == 0) ? NONE : base.parents[from + i] - from;
+			this.firstChildren[i] = (base.firstChildren[from + i] == NONE) ? NONE : base.firstChildren[from + i] - from;
+			this.nexts[i] = (i == 0 || base.nexts[from + i] == NONE) ? NONE : base.nexts[from + i] - from;
+		}
+		this.data = Arrays.copyOfRange(base.data, from, end);
+		this.records = base.records;
+		this.recordCount = base.recordCount;
+		this.text = base.text;
+		this.textLength = base.textLength;
+		this.extra = base.extra;
+		this.mapped = null;
+		this.base = null;
+		this.edited = null;
+		this.editedData = null;
+		this.editedRecords = null;
+		long[] hashes = base.hashes;
+		if (hashes != null) {
+			this.hashes = Arrays.copyOfRange(hashes, from, end);
+		}
+	}
+
+	// A document from its arrays, as read back by BinaryFormat.
+	CompactDocument(byte[] types, int[] parents, int[] firstChildren, int[] nexts,
+			int[] data, int[] records, String text) {
+		this(types, parents, firstChildren, nexts, data, records, text, "");
+	}
+
+	private CompactDocument(byte[] types, int[] parents, int[] firstChildren, int[] nexts,
+			int[] data, int[] records, String text, String extra) {
+		this.types = types;
+		this.parents = parents;
+		this.firstChildren = firstChildren;
+		this.nexts = nexts;
+		this.data = data;
+		this.size = types.length;
+		this.records = records;
+		this.recordCount = records.length;
+		this.text = text;
+		this.textLength = text.length();
+		this.extra = extra;
+		this.mapped = null;
+		this.base = null;
+		this.edited = null;
+		this.editedData = null;
+		this.editedRecords = null;
+	}
+
+	// A document read in place from a buffer.
+	CompactDocument(BinaryFormat.Mapped mapped) {
+		this.types = null;
+		this.parents = null;
+		this.firstChildren = null;
+		this.nexts = null;
+		this.data = null;
+		this.size = mapped.size;
+		this.records = null;
+		this.recordCount = mapped.recordCount;
+		this.text = null;
+		this.textLength = mapped.textLength;
+		this.extra = "";
+		this.mapped = mapped;
+		this.base = null;
+		this.edited = null;
+		this.editedData = null;
+		this.editedRecords = null;
+	}
+
+	private CompactDocument(Builder builder) {
+		this.types = Arrays.copyOf(builder.types, builder.size);
+		this.parents = Arrays.copyOf(builder.parents, builder.size);
+		this.firstChildren = Arrays.copyOf(builder.firstChildren, builder.size);
+		this.nexts = Arrays.copyOf(builder.nexts, builder.size);
+		this.data = Arrays.copyOf(builder.data, builder.size);
+		this.size = builder.size;
+		this.records = Arrays.copyOf(builder.records, builder.recordsLength);
+		this.recordCount = builder.recordsLength;
+		this.text = builder.buffer.toString();
+		this.textLength = this.text.length();
+		this.extra = "";
+		this.mapped = null;
+		this.base = null;
+		this.edited = null;
+		this.editedData = null;
+		this.editedRecords = null;
+	}
+
+	// A copy of doc with the data of node i replaced by the data of node.
+	// It shares the arrays of doc or of its base, and copies only the
+	// changes made so far, and if doc has its hashes, only node i and the
+	// nodes above it are hashed again.
+	private CompactDocument(CompactDocument doc, int i, Node node) {
+		CompactDocument base = (doc.base != null) ? doc.base : doc;
+		Builder builder = new Builder(doc);
+		int r = builder.record(node);
+
+		// node i and the nodes above it, in order, merged into the edited
+		int depth = 0;
+		for (int j = i; j != NONE; j = doc.parentOf(j)) {
+			depth++;
+		}
+		int[] path = new int[depth];
+		for (int j = i; j != NONE; j = doc.parentOf(j)) {
+			path[--depth] = j;
+		}
+		int[] before = (doc.edited != null) ? doc.edited : new int[0];
+		int[] edited = new int[before.length + path.length];
+		int[] editedData = new int[edited.length];
+		boolean[] rehash = new boolean[edited.length];
+		int n = 0;
+		for (int a = 0, b = 0; a < before.length || b < path.length; n++) {
+			if (b == path.length || (a < before.length && before[a] < path[b])) {
+				edited[n] = before[a];
+				editedData[n] = doc.editedData[a++];
+			} else {
+				if (a < before.length && before[a] == path[b]) {
+					a++;
+				}
+				edited[n] = path[b++];
+				editedData[n] = (edited[n] == i) ? r : doc.dataOf(edited[n]);
+				rehash[n] = true;
+			}
+		}
+
+		this.types = base.types;
+		this.parents = base.parents;
+		this.firstChildren = base.firstChildren;
+		this.nexts = base.nexts;
+		this.data = base.data;
+		this.size = base.size;
+		this.records = base.records;
+		this.recordCount = base.recordCount;
+		this.text = base.text;
+		this.textLength = base.textLength;
+		this.extra = builder.buffer.toString();
+		this.mapped = base.mapped;
+		this.base = base;
+		this.edited = Arrays.copyOf(edited, n);
+		this.editedData = Arrays.copyOf(editedData, n);
+		this.editedRecords = Arrays.copyOf(builder.records, builder.recordsLength);
+
+		long[] hashes = doc.hashes;
+		if (hashes != null) {
+			long[] rehashed = new long[n];
+			for (int k = 0, a = 0; k < n; k++) {
+				if (doc.edited == null) {
+					rehashed[k] = hashes[this.edited[k]];
+				} else if (a < doc.edited.length && doc.edited[a] == this.edited[k]) {
+					rehashed[k] = hashes[a++];
+				}
+			}
+			NodeView view = new NodeView(0);
+			for (int k = n - 1; k >= 0; k--) {
+				if (rehash[k]) {
+					rehashed[k] = hash(rehashed, this.edited[k], view);
+				}
+			}
+			this.hashes = rehashed;
+		}
+	}
+
+	long hash(int i) {
+		if (edited != null) {
+			int k = Arrays.binarySearch(edited, i);
+			if (k < 0) {
+				return base.hash(i);
+			}
+			long[] hashes = this.hashes;
+			if (hashes == null) {
+				hashes = new long[edited.length];
+				NodeView view = new NodeView(0);
+				for (int j = edited.length - 1; j >= 0; j--) {
+					hashes[j] = hash(hashes, edited[j], view);
+				}
+				this.hashes = hashes;
+			}
+			return hashes[k];
+		}
+
+		long[] hashes = this.hashes;
+		if (hashes == null) {
+			// children have greater numbers than their parents
+			hashes = new long[size];
+			NodeView view = new NodeView(0);
+			for (int j = size - 1; j >= 0; j--) {
+				hashes[j] = hash(hashes, j, view);
+			}
+			this.hashes = hashes;
+		}
+		return hashes[i];
+	}
+
+	// The hash of node i from those of its children, which are in hashes
+	// by number, or by place in edited for a derived document.
+	private long hash(long[] hashes, int i, NodeView view) {
+		view.moveTo(i);
+		long h = TreeDiff.data(view);
+		for (int child = firstChildOf(i); child != NONE; child = nextOf(child)) {
+			if (edited == null) {
+				h = TreeDiff.mix(h, hashes[child]);
+			} else {
+				int k = Arrays.binarySearch(edited, child);
+				h = TreeDiff.mix(h, (k >= 0) ? hashes[k] : base.hash(child));
+			}
+		}
+		return h;
+	}
+
+	// This document with its arrays on the heap and its changes applied,
+	// for the copies made from it, which take the arrays of their base.
+	// It is made once, when first asked for.
+	CompactDocument onHeap() {
+		if (mapped == null && edited == null) {
+			return this;
+		}
+		CompactDocument onHeap = this.onHeap;
+		if (onHeap != null) {
+			return onHeap;
+		}
+		byte[] types = this.types;
+		int[] parents = this.parents;
+		int[] firstChildren = this.firstChildren;
+		int[] nexts = this.nexts;
+		if (mapped != null) {
+			types = new byte[size];
+			parents = new int[size];
+			firstChildren = new int[size];
+			nexts = new int[size];
+			for (int i = 0; i < size; i++) {
+				types[i] = mapped.type(i);
+				parents[i] = mapped.parent(i);
+				firstChildren[i] = mapped.firstChild(i);
+				nexts[i] = mapped.next(i);
+			}
+		}
+		int[] data = new int[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = dataOf(i);
+		}
+		int[] records = new int[recordCount + ((editedRecords != null) ? editedRecords.length : 0)];
+		for (int r = 0; r < records.length; r++) {
+			records[r] = recordAt(r);
+		}
+		String text = (mapped != null) ? mapped.text() : this.text;
+		onHeap = new CompactDocument(types, parents, firstChildren, nexts, data, records, text, extra);
+		this.onHeap = onHeap;
+		return onHeap;
+	}
+
+	byte kindOf(int i) {
+		return (mapped == null) ? types[i] : mapped.type(i);
+	}
+
+	int firstChildOf(int i) {
+		return (mapped == null) ? firstChildren[i] : mapped.firstChild(i);
+	}
+
+	int nextOf(int i) {
+		return (mapped == null) ? nexts[i] : mapped.next(i);
+	}
+
+	int parentOf(int i) {
+		return (mapped == null) ? parents[i] : mapped.parent(i);
+	}
+
+	int dataOf(int i) {
+		if (edited != null) {
+			int k = Arrays.binarySearch(edited, i);
+			if (k >= 0) {
+				return editedData[k];
+			}
+		}
+		return (mapped == null) ? data[i] : mapped.data(i);
+	}
+
+	int recordAt(int r) {
+		if (r >= recordCount) {
+			return editedRecords[r - recordCount];
+		}
+		return (mapped == null) ? records[r] : mapped.record(r);
+	}
+
+	// Collects the arrays, growing them as the tree is copied.
+	private static final class Builder {
+		byte[] types = new byte[256];
+		int[] parents = new int[256];
+		int[] firstChildren = new int[256];
+		int[] nexts = new int[256];
+		int[] data = new int[256];
+		int size = 0;
+		int[] records = new int[1024];
+		int recordsLength = 0;
+		int recordsOffset = 0;
+		StringBuilder buffer = new StringBuilder();
+		int bufferOffset = 0;
+
+		// Paragraphs and headers whose inlines are not parsed yet (see
+		// Parser.Options.lazy) are parsed here one at a time into a copy
+		// of the block, leaving the tree as it is, so that no more than
+		// one block's worth of inline nodes is alive at a time.
+		Builder(Node root) throws CMarkLimitException {
+			int[] last = new int[16];
+			int depth = 0;
+			int parent = NONE;
+			ParagraphNode parsed = null;
+			ParagraphNode unparsed = null;
+			Node node = root;
+			while (true) {
+				int i = add(node, parent);
+				if (parent != NONE) {
+					if (last[depth] == NONE) {
+						firstChildren[parent] = i;
+					} else {
+						nexts[last[depth]] = i;
+					}
+				}
+				last[depth] = i;
+
+				if (node instanceof ParagraphNode && ((ParagraphNode)node)._lazyInlines != null) {
+					unparsed = (ParagraphNode)node;
+					parsed = unparsed.parsed();
+					node = parsed;
+				}
+
+				if (node._firstChild != null) {
+					depth++;
+					if (depth == last.length) {
+						last = Arrays.copyOf(last, depth * 2);
+					}
+					last[depth] = NONE;
+					parent = i;
+					node = node._firstChild;
+					continue;
+				}
+
+				while (true) {
+					if (node == parsed) {
+						node = unparsed;
+						parsed = null;
+					}
+					if (node == root || node._next != null) {
+						break;
+					}
+					node = node._parent;
+					depth--;
+					parent = parents[parent];
+				}
+				if (node == root) {
+					break;
+				}
+				node = node._next;
+			}
+		}
+
+		// Appends records to those derive added to doc, and strings to
+		// its extra.
+		Builder(CompactDocument doc) {
+			int[] records = (doc.editedRecords != null) ? doc.editedRecords : new int[0];
+			this.records = Arrays.copyOf(records, records.length + 8);
+			this.recordsLength = records.length;
+			this.recordsOffset = doc.recordCount;
+			this.buffer.append(doc.extra);
+			this.bufferOffset = doc.textLength;
+		}
+
+		private int add(Node node, int parent) {
+			if (size == types.length) {
+				int capacity = size * 2;
+				types = Arrays.copyOf(types, capacity);
+				parents = Arrays.copyOf(parents, capacity);
+				firstChildren = Arrays.copyOf(firstChildren, capacity);
+				nexts = Arrays.copyOf(nexts, capacity);
+				data = Arrays.copyOf(data, capacity);
+			}
+			int i = size++;
+			types[i] = (byte)node._type.ordinal();
+			parents[i] = parent;
+			firstChildren[i] = NONE;
+			nexts[i] = NONE;
+			data[i] = record(node);
+			return i;
+		}
+
+		// Record the data of node, returning where, or NONE for a node
+		// without any.
+		int record(Node node) {
+			int r;
+			switch (node._type) {
+			case TEXT:
+			case CODE:
+			case HTML:
+				r = record(2);
+				string(r, node.literalChars());
+				break;
+			case LINK:
+			case IMAGE:
+				r = record(4);
+				string(r, node.destination());
+				string(r + 2, node.title());
+				break;
+			default:
+				if (!(node instanceof BlockNode)) {
+					r = NONE;
+					break;
+				}
+				BlockNode block = (BlockNode)node;
+				switch (node._type) {
+				case LIST:
+				case ITEM:
+					r = record(6);
+					ListData listData = ((ListNode)block)._listData;
+					if (listData != null) {
+						records[r + 4] = listData.start;
+						records[r + 5] = listData.type.ordinal() | (listData.tight ? 1 << 8 : 0) | (listData.delimiter << 16);
+					} else {
+						records[r + 5] = NONE;
+					}
+					break;
+				case PARAGRAPH:
+				case HEADER:
+					r = record(5);
+					records[r + 4] = node.level();
+					break;
+				case CODE_BLOCK:
+				case HTML_BLOCK:
+					r = record(8);
+					string(r + 4, node.literalChars());
+					string(r + 6, node.info());
+					break;
+				default:
+					r = record(4);
+					break;
+				}
+				records[r] = block._startLine;
+				records[r + 1] = block._startColumn;
+				records[r + 2] = block._endLine;
+				records[r + 3] = block._endColumn;
+				break;
+			}
+			return (r != NONE) ? recordsOffset + r : NONE;
+		}
+
+		private int record(int length) {
+			if (recordsLength + length > records.length) {
+				records = Arrays.copyOf(records, Math.max(records.length * 2, recordsLength + length));
+			}
+			int r = recordsLength;
+			recordsLength += length;
+			return r;
+		}
+
+		private void string(int at, CharSequence s) {
+			if (s == null) {
+				records[at] = NONE;
+				records[at + 1] = 0;
+			} else {
+				records[at] = bufferOffset + buffer.length();
+				records[at + 1] = s.length();
+				if (s instanceof Slice) {
+					buffer.append(((Slice)s).source, ((Slice)s).start, ((Slice)s).end);
+				} else {
+					buffer.append(s);
+				}
+			}
+		}
+	}
+
+	private String string(int at) {
+		int offset = recordAt(at);
+		if (offset == NONE) {
+			return null;
+		} else if (offset >= textLength) {
+			offset -= textLength;
+			return extra.substring(offset, offset + recordAt(at + 1));
+		} else if (mapped != null) {
+			return mapped.string(offset, recordAt(at + 1));
+		} else {
+			return text.substring(offset, offset + recordAt(at + 1));
+		}
+	}
+
+	private CharSequence slice(int at) {
+		int offset = recordAt(at);
+		if (offset == NONE) {
+			return null;
+		} else if (offset >= textLength) {
+			offset -= textLength;
+			return new Slice(extra, offset, offset + recordAt(at + 1));
+		} else if (mapped != null) {
+			return mapped.string(offset, recordAt(at + 1));
+		} else {
+			return new Slice(text, offset, offset + recordAt(at + 1));
+		}
+	}
+
+	// A mutable node of the type of node i, holding the same data, for
+	// derive to pass to an edit.
+	private Node scratch(int i) {
+		NodeView view = new NodeView(i);
+		int r = dataOf(i);
+		Node node = Node.create(view._type, 0, 0);
+		switch (view._type) {
+		case TEXT:
+		case CODE:
+		case HTML:
+			node.literal(view.literal());
+			break;
+		case LINK:
+		case IMAGE:
+			node.destination(view.destination());
+			node.title(view.title());
+			break;
+		default:
+			if (!(node instanceof BlockNode)) {
+				break;
+			}
+			BlockNode block = (BlockNode)node;
+			block._startLine = recordAt(r);
+			block._startColumn = recordAt(r + 1);
+			block._endLine = recordAt(r + 2);
+			block._endColumn = recordAt(r + 3);
+			switch (view._type) {
+			case LIST:
+			case ITEM:
+				if (view.listType() != null) {
+					((ListNode)block)._listData = new ListData(view.listType(), view.listTight(), '\0',
+							view.listStart(), view.listDelimiter(), 0, 0);
+				}
+				break;
+			case PARAGRAPH:
+			case HEADER:
+				node.level(view.level());
+				break;
+			case CODE_BLOCK:
+			case HTML_BLOCK:
+				node.literal(view.literal());
+				node.info(view.info());
+				break;
+			default:
+				break;
+			}
+			break;
+		}
+		return node;
+	}
+
+	// The document node.
+	Node root() {
+		return new NodeView(0);
+	}
+
+	// The number after the last node in the subtree of i.
+	int end(int i) {
+		while (i != NONE && nextOf(i) == NONE) {
+			i = parentOf(i);
+		}
+		return (i != NONE) ? nextOf(i) : size;
+	}
+
+	private NodeView view(int i) {
+		return (i == NONE) ? null : new NodeView(i);
+	}
+
+	// A node of the document.  Every mutator throws
+	// UnsupportedOperationException; see derive instead.
+	final class NodeView extends Node {
+		int index;
+
+		NodeView(int index) {
+			super(TYPES[kindOf(index)]);
+			this.index = index;
+		}
+
+		void moveTo(int index) {
+			this.index = index;
+			this._type = TYPES[kindOf(index)];
+		}
+
+		@Override
+		public Node firstChild() {
+			return view(firstChildOf(index));
+		}
+
+		@Override
+		public Node lastChild() {
+			int child = firstChildOf(index);
+			if (child != NONE) {
+				while (nextOf(child) != NONE) {
+					child = nextOf(child);
+				}
+			}
+			return view(child);
+		}
+
+		@Override
+		public Node next() {
+			return view(nextOf(index));
+		}
+
+		@Override
+		public Node prev() {
+			if (index == 0 || firstChildOf(parentOf(index)) == index) {
+				return null;
+			}
+			int sibling = firstChildOf(parentOf(index));
+			while (nextOf(sibling) != index) {
+				sibling = nextOf(sibling);
+			}
+			return view(sibling);
+		}
+
+		@Override
+		public Node parent() {
+			return view(parentOf(index));
+		}
+
+		@Override
+		public int[][] sourcepos() {
+			int r = dataOf(index);
+			switch (_type) {
+			case TEXT:
+			case CODE:
+			case HTML:
+			case LINK:
+			case IMAGE:
+				return null;
+			default:
+				if (r == NONE) {
+					return null;
+				}
+				return new int[][] {{recordAt(r), recordAt(r + 1)}, {recordAt(r + 2), recordAt(r + 3)}};
+			}
+		}
+
+		@Override
+		int sourcepos(int i) {
+			int r = dataOf(index);
+			switch (_type) {
+			case TEXT:
+			case CODE:
+			case HTML:
+			case LINK:
+			case IMAGE:
+				return -1;
+			default:
+				return (r == NONE) ? -1 : recordAt(r + i);
+			}
+		}
+
+		@Override
+		public String literal() {
+			switch (_type) {
+			case TEXT:
+			case CODE:
+			case HTML:
+				return string(dataOf(index));
+			case CODE_BLOCK:
+			case HTML_BLOCK:
+				return string(dataOf(index) + 4);
+			default:
+				return null;
+			}
+		}
+
+		@Override
+		CharSequence literalChars() {
+			switch (_type) {
+			case TEXT:
+			case CODE:
+			case HTML:
+				return slice(dataOf(index));
+			case CODE_BLOCK:
+			case HTML_BLOCK:
+				return slice(dataOf(index) + 4);
+			default:
+				return null;
+			}
+		}
+
+		@Override
+		public String destination() {
+			return (_type == CMarkNodeType.LINK || _type == CMarkNodeType.IMAGE) ? string(dataOf(index)) : null;
+		}
+
+		@Override
+		public String title() {
+			return (_type == CMarkNodeType.LINK || _type == CMarkNodeType.IMAGE) ? string(dataOf(index) + 2) : null;
+		}
+
+		@Override
+		public String info() {
+			return (_type == CMarkNodeType.CODE_BLOCK || _type == CMarkNodeType.HTML_BLOCK) ? string(dataOf(index) + 6) : null;
+		}
+
+		@Override
+		public int level() {
+			return (_type == CMarkNodeType.PARAGRAPH || _type == CMarkNodeType.HEADER) ? recordAt(dataOf(index) + 4) : -1;
+		}
+
+		private int listFlags() {
+			return (_type == CMarkNodeType.LIST || _type == CMarkNodeType.ITEM) ? recordAt(dataOf(index) + 5) : NONE;
+		}
+
+		@Override
+		public ListType listType() {
+			int flags = listFlags();
+			return (flags == NONE) ? null : LIST_TYPES[flags & 0xFF];
+		}
+
+		@Override
+		public Boolean listTight() {
+			int flags = listFlags();
+			return (flags == NONE) ? null : (flags & (1 << 8)) != 0;
+		}
+
+		@Override
+		public Integer listStart() {
+			int flags = listFlags();
+			return (flags == NONE) ? null : recordAt(dataOf(index) + 4);
+		}
+
+		@Override
+		public Character listDelimiter() {
+			int flags = listFlags();
+			return (flags == NONE) ? null : (char)(flags >>> 16);
+		}
+
+		private UnsupportedOperationException readOnly() {
+			return new UnsupportedOperationException("compact documents are read-only");
+		}
+
+		@Override
+		public void literal(String s) {
+			throw readOnly();
+		}
+
+		@Override
+		public void destination(String s) {
+			throw readOnly();
+		}
+
+		@Override
+		public void title(String s) {
+			throw readOnly();
+		}
+
+		@Override
+		public void info(String s) {
+			throw readOnly();
+		}
+
+		@Override
+		public void level(int s) {
+			throw readOnly();
+		}
+
+		@Override
+		public void listType(ListType t) {
+			throw readOnly();
+		}
+
+		@Override
+		public void listTight(Boolean t) {
+			throw readOnly();
+		}
+
+		@Override
+		public void listStart(Integer n) {
+			throw readOnly();
+		}
+
+		@Override
+		public void listDelimiter(Character delim) {
+			throw readOnly();
+		}
+
+		@Override
+		public void appendChild(Node child) {
+			throw readOnly();
+		}
+
+		@Override
+		public void prependChild(Node child) {
+			throw readOnly();
+		}
+
+		@Override
+		public void unlink() {
+			throw readOnly();
+		}
+
+		@Override
+		public void insertAfter(Node sibling) {
+			throw readOnly();
+		}
+
+		@Override
+		public void insertBefore(Node sibling) {
+			throw readOnly();
+		}
+
+		@Override
+		public Node freeze() {
+			return (index == 0) ? this : new CompactDocument(onHeap(), index).root();
+		}
+
+		@Override
+		public Node derive(Node node, Consumer<? super Node> edit) {
+			if (!(node instanceof NodeView) || ((NodeView)node).document() != CompactDocument.this) {
+				throw new IllegalArgumentException("node is not in this document");
+			}
+			int i = ((NodeView)node).index;
+			Node scratch = scratch(i);
+			edit.accept(scratch);
+			return new CompactDocument(CompactDocument.this, i, scratch).new NodeView(index);
+		}
+
+		@Override
+		public NodeWalker walker() {
+			return new CompactWalker(this);
+		}
+
+		@Override
+		public NodeCursor cursor() {
+			return new CompactCursor(this);
+		}
+
+		@Override
+		public Iterator<CMarkNode> iterator() {
+			return new Iterator<CMarkNode>() {
+				private int current = index;
+
+				@Override
+				public boolean hasNext() {
+					return current < size;
+				}
+
+				@Override
+				public CMarkNode next() {
+					if (current >= size) {
+						throw new NoSuchElementException();
+					}
+					return new NodeView(current++);
+				}
+			};
+		}
+
+		// A subtree is the numbers from the node to the next node that is
+		// not in it, so it splits anywhere.
+		@Override
+		public Spliterator<CMarkNode> spliterator() {
+			return new RangeSpliterator(index, end(index));
+		}
+
+		@Override
+		List<Node> find(CMarkNodeType type) {
+			List<Node> result = new ArrayList<>();
+			byte t = (byte)type.ordinal();
+			for (int i = index, end = end(index); i < end; i++) {
+				if (kindOf(i) == t) {
+					result.add(new NodeView(i));
+				}
+			}
+			return Collections.unmodifiableList(result);
+		}
+
+		CompactDocument document() {
+			return CompactDocument.this;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return (obj instanceof NodeView) &&
+					((NodeView)obj).document() == CompactDocument.this &&
+					((NodeView)obj).index == index;
+		}
+
+		@Override
+		public int hashCode() {
+			return index;
+		}
+	}
+
+	final class RangeSpliterator implements Spliterator<CMarkNode> {
+		private int index;
+		private final int end;
+
+		RangeSpliterator(int index, int end) {
+			this.index = index;
+			this.end = end;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super CMarkNode> action) {
+			if (index >= end) {
+				return false;
+			}
+			action.accept(new NodeView(index++));
+			return true;
+		}
+
+		@Override
+		public Spliterator<CMarkNode> trySplit() {
+			int mid = (index + end) >>> 1;
+			if (mid <= index) {
+				return null;
+			}
+			RangeSpliterator prefix = new RangeSpliterator(index, mid);
+			index = mid;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			return end - index;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | DISTINCT | NONNULL | SIZED | SUBSIZED | IMMUTABLE;
+		}
+	}
+
+	// Walks the node numbers like NodeCursor walks the nodes; node()
+	// returns the same view, moved along, at every step, as NodeCursor
+	// allows.
+	final class CompactCursor extends NodeCursor {
+		private int rootIndex;
+		private int index;
+		private boolean entering = true;
+		private int nodeIndex = NONE;
+		private boolean nodeEntering;
+		private final NodeView cursor;
+
+		CompactCursor(NodeView root) {
+			super(root);
+			this.rootIndex = root.index;
+			this.index = root.index;
+			this.cursor = new NodeView(root.index);
+		}
+
+		@Override
+		public boolean next() {
+			int cur = this.index;
+			boolean entering = this.entering;
+
+			if (cur == NONE) {
+				this.nodeIndex = NONE;
+				return false;
+			}
+
+			if (entering && Node.isContainer(TYPES[kindOf(cur)])) {
+				if (firstChildOf(cur) != NONE) {
+					this.index = firstChildOf(cur);
+					this.entering = true;
+				} else {
+					// stay on node but exit
+					this.entering = false;
+				}
+
+			} else if (cur == this.rootIndex) {
+				this.index = NONE;
+
+			} else if (nextOf(cur) == NONE) {
+				this.index = parentOf(cur);
+				this.entering = false;
+
+			} else {
+				this.index = nextOf(cur);
+				this.entering = true;
+			}
+
+			this.cursor.moveTo(cur);
+			this.nodeIndex = cur;
+			this.nodeEntering = entering;
+			return true;
+		}
+
+		@Override
+		public Node node() {
+			return (this.nodeIndex != NONE) ? this.cursor : null;
+		}
+
+		@Override
+		public boolean entering() {
+			return this.nodeEntering;
+		}
+
+		@Override
+		public void skipChildren() {
+			if (this.nodeEntering && Node.isContainer(TYPES[kindOf(this.nodeIndex)])) {
+				this.index = this.nodeIndex;
+				this.entering = false;
+			}
+		}
+
+		@Override
+		public void resumeAt(Node node, boolean entering) {
+			this.index = (node != null) ? ((NodeView)node).index : NONE;
+			this.entering = entering;
+		}
+	}
+
+	// A NodeWalker over a CompactCursor.  Like NodeWalker, it returns a
+	// new Event with a view of its own for each step, and keeps current
+	// and entering where the next step starts.
+	final class CompactWalker extends NodeWalker {
+		private final CompactCursor cursor;
+
+		CompactWalker(NodeView root) {
+			super(root);
+			this.cursor = new CompactCursor(root);
+		}
+
+		@Override
+		public Event next() {
+			CompactCursor cursor = this.cursor;
+			cursor.rootIndex = ((NodeView)this.root).index;
+			cursor.resumeAt(this.current, this.entering);
+			if (!cursor.next()) {
+				return null;
+			}
+			this.current = (cursor.index != NONE) ? new NodeView(cursor.index) : null;
+			this.entering = cursor.entering;
+
+			Event next = new Event();
+			next.entering = cursor.entering();
+			next.node = new NodeView(cursor.nodeIndex);
+			return next;
+		}
+	}
+}
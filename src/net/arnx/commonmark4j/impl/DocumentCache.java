@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.arnx.commonmark4j.CMarkParser;
+
+// A parser that keeps the documents it parsed, keyed by a hash of their
+// text, so that the same text is not parsed again.  Documents are kept
+// in BinaryFormat in direct buffers, outside the Java heap, and a hit
+// returns a frozen document that reads its buffer in place, decoding
+// only the strings that are asked for.  The least recently used ones
+// are dropped once the buffers take more than maxBytes in all; a
+// document returned earlier keeps its buffer until it is collected.
+// Direct memory is freed when the dropped buffers are collected, so
+// -XX:MaxDirectMemorySize should leave room for that.
+public final class DocumentCache implements CMarkParser {
+	private final Parser parser;
+	private final Object parserLock = new Object();
+	private final long maxBytes;
+	private final LinkedHashMap<ByteBuffer, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	// Documents that are not cached are parsed by parser, which must not
+	// be used elsewhere at the same time.
+	public DocumentCache(Parser parser, long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+		}
+		this.parser = parser;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public Node parse(BufferedReader reader) throws IOException {
+		// read no further than the parser would before it gave up
+		long max = this.parser.options.maxInputLength;
+		StringBuilder sb = new StringBuilder();
+		char[] cbuf = new char[8192];
+		int n;
+		while (sb.length() <= max && (n = reader.read(cbuf)) != -1) {
+			sb.append(cbuf, 0, n);
+		}
+		return parse(sb.toString());
+	}
+
+	public Node parse(String text) throws IOException {
+		ByteBuffer key = key(text);
+		ByteBuffer entry;
+		synchronized (this) {
+			entry = this.entries.get(key);
+			if (entry != null) {
+				this.hits++;
+			} else {
+				this.misses++;
+			}
+		}
+		if (entry != null) {
+			return BinaryFormat.view(entry);
+		}
+
+		Node doc;
+		synchronized (this.parserLock) {
+			doc = this.parser.parse(new BufferedReader(new StringReader(text))).freeze();
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryFormat.write(doc, out);
+		if (out.size() <= this.maxBytes) {
+			entry = ByteBuffer.allocateDirect(out.size());
+			entry.put(out.toByteArray()).flip();
+			put(key, entry);
+		}
+		return doc;
+	}
+
+	private synchronized void put(ByteBuffer key, ByteBuffer entry) {
+		ByteBuffer old = this.entries.put(key, entry);
+		if (old != null) {
+			// parsed twice at the same time
+			this.bytes -= old.capacity();
+		}
+		this.bytes += entry.capacity();
+		Iterator<ByteBuffer> i = this.entries.values().iterator();
+		while (this.bytes > this.maxBytes) {
+			this.bytes -= i.next().capacity();
+			i.remove();
+			this.evictions++;
+		}
+	}
+
+	private static ByteBuffer key(String text) {
+		try {
+			return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public synchronized void clear() {
+		this.entries.clear();
+		this.bytes = 0L;
+	}
+
+	// number of documents cached
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	// bytes of direct memory the cached documents take
+	public synchronized long bytes() {
+		return this.bytes;
+	}
+
+	public synchronized long hits() {
+		return this.hits;
+	}
+
+	public synchronized long misses() {
+		return this.misses;
+	}
+
+	public synchronized long evictions() {
+		return this.evictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("DocumentCache[");
+		sb.append("size=").append(this.entries.size());
+		sb.append(", bytes=").append(this.bytes).append('/').append(this.maxBytes);
+		sb.append(", hits=").append(this.hits);
+		sb.append(", misses=").append(this.misses);
+		sb.append(", evictions=").append(this.evictions);
+		return sb.append(']').toString();
+	}
+}
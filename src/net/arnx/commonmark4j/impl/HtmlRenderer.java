@@ -8,36 +8,19 @@ package net.arnx.commonmark4j.impl;
 import static net.arnx.commonmark4j.impl.Common.*;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.regex.Pattern;
 
-import org.w3c.dom.Attr;
-
 import net.arnx.commonmark4j.CMarkNode;
 import net.arnx.commonmark4j.CMarkNodeType;
 import net.arnx.commonmark4j.CMarkRenderer;
-import net.arnx.commonmark4j.impl.Node.Event;
-import net.arnx.commonmark4j.impl.Node.NodeWalker;
+import net.arnx.commonmark4j.impl.Node.NodeCursor;
 
 public class HtmlRenderer implements CMarkRenderer {
-	private static String tag(String name, Map<String, String> attrs, boolean selfclosing) {
-		StringBuilder result = new StringBuilder().append("<").append(name);
-		if (attrs != null) {
-			for (Map.Entry<String, String> attrib : attrs.entrySet()) {
-				result.append(' ').append(attrib.getKey()).append("=\"").append(attrib.getValue()).append("\"");
-			}
-		}
-		if (selfclosing) {
-			result.append(" /");
-		}
-
-		result.append(">");
-		return result.toString();
-	}
+	// Tags are written as they are, and attributes straight after the
+	// start of their tag, so that nothing is built to write them.
+	private static final String[] HEADER_START = { "<h1", "<h2", "<h3", "<h4", "<h5", "<h6" };
+	private static final String[] HEADER_END = { "</h1>", "</h2>", "</h3>", "</h4>", "</h5>", "</h6>" };
 
-	private static final Pattern reHtmlTag = Pattern.compile("\\<[^>]*\\>");
 	private static final Pattern reUnsafeProtocol = Pattern.compile("^javascript:|vbscript:|file:|data:", Pattern.CASE_INSENSITIVE);
 	private static final Pattern reSafeDataProtocol = Pattern.compile("^data:image/(?:png|gif|jpeg|webp)", Pattern.CASE_INSENSITIVE);
 
@@ -47,55 +30,170 @@ public class HtmlRenderer implements CMarkRenderer {
 	}
 
 	class RenderNodes {
-		List<Attr> attrs;
-		String[] info_words;
-		String tagname;
-		NodeWalker walker;
-		Event event; Node node; boolean entering;
+		NodeCursor cursor;
 		char lastOut = '\n';
-		int disableTags = 0;
+		Limits limits = new Limits();
 		Node grandparent;
+		char[] digits = new char[11];
 
 		private void out(Appendable buffer, String s) throws IOException {
-			if (disableTags > 0) {
-				buffer.append(replace(s, reHtmlTag, ""));
-			} else {
-				buffer.append(s);
-			}
+			limits.checkOutput(s.length());
+			buffer.append(s);
+			limits.output += s.length();
 			lastOut = s.equals("\n") ? '\n' : ' ';
 		}
 
+		// Write markup the renderer makes.
+		private void tag(Appendable buffer, String s) throws IOException {
+			buffer.append(s);
+			limits.output += s.length();
+			lastOut = ' ';
+		}
+
+		// Write s without the tags in it (anything from '<' to the next
+		// '>'), as raw HTML in an image description is written.
+		private void outWithoutTags(Appendable buffer, String s) throws IOException {
+			int from = 0;
+			int count = 0;
+			char last = ' ';
+			int open;
+			int close;
+			while ((open = s.indexOf('<', from)) != -1 && (close = s.indexOf('>', open + 1)) != -1) {
+				if (from < open) {
+					buffer.append(s, from, open);
+					count += open - from;
+					last = s.charAt(open - 1);
+				}
+				from = close + 1;
+			}
+			if (from < s.length()) {
+				buffer.append(s, from, s.length());
+				count += s.length() - from;
+				last = s.charAt(s.length() - 1);
+			}
+			limits.output += count;
+			lastOut = (count == 1 && last == '\n') ? '\n' : ' ';
+		}
+
+		// Write the start of a tag and its data-sourcepos attribute; the
+		// caller writes any other attributes and the closing '>'.
+		private void start(Appendable buffer, String s, Node node) throws IOException {
+			tag(buffer, s);
+			if (options.sourcepos && node.sourcepos(0) != -1) {
+				tag(buffer, " data-sourcepos=\"");
+				number(buffer, node.sourcepos(0));
+				tag(buffer, ":");
+				number(buffer, node.sourcepos(1));
+				tag(buffer, "-");
+				number(buffer, node.sourcepos(2));
+				tag(buffer, ":");
+				number(buffer, node.sourcepos(3));
+				tag(buffer, "\"");
+			}
+		}
+
+		// Write an attribute whose value is escaped, preserving entities.
+		private void attr(Appendable buffer, String name, String value) throws IOException {
+			tag(buffer, name);
+			limits.output += escapeXml(value, true, buffer);
+			tag(buffer, "\"");
+		}
+
+		private void number(Appendable buffer, int n) throws IOException {
+			int i = digits.length;
+			long v = Math.abs((long)n);
+			do {
+				digits[--i] = (char)('0' + v % 10);
+				v /= 10;
+			} while (v > 0);
+			if (n < 0) {
+				digits[--i] = '-';
+			}
+			for (int j = i; j < digits.length; j++) {
+				buffer.append(digits[j]);
+			}
+			limits.output += digits.length - i;
+		}
+
+		// Write a literal escaped, straight from where the node keeps it.
+		private void outEscaped(Appendable buffer, CharSequence s) throws IOException {
+			limits.checkOutput(s.length());
+			limits.output += escapeXml(s, buffer);
+			lastOut = (s.length() == 1 && s.charAt(0) == '\n') ? '\n' : ' ';
+		}
+
 		private void cr(Appendable buffer) throws IOException {
 			if (lastOut != '\n') {
 				buffer.append('\n');
 				lastOut = '\n';
+				limits.output++;
+			}
+		}
+
+		// Write the description of image as plain text for its alt
+		// attribute: the text of its descendants, with the breaks as
+		// newlines and anything else left out.
+		private void alt(Appendable buffer, Node image) throws IOException {
+			NodeCursor alt = image.cursor();
+			while (alt.next()) {
+				limits.check();
+				Node node = alt.node();
+				switch (node.type()) {
+				case TEXT:
+					outEscaped(buffer, node.literalChars());
+					break;
+
+				case CODE:
+					outEscaped(buffer, node.literalChars());
+					lastOut = ' ';
+					break;
+
+				case SOFTBREAK:
+					outWithoutTags(buffer, options.softbreak);
+					break;
+
+				case HARDBREAK:
+					lastOut = ' ';
+					cr(buffer);
+					break;
+
+				case HTML:
+					if (options.safe) {
+						lastOut = ' ';
+					} else {
+						outWithoutTags(buffer, node.literal());
+					}
+					break;
+
+				case IMAGE:
+					// the description of an image inside is written, but
+					// nothing of the image itself
+					break;
+
+				default:
+					lastOut = ' ';
+					break;
+				}
 			}
 		}
 
 		public void render(Node block, Appendable buffer) throws IOException {
-			walker = block.walker();
+			cursor = block.cursor();
 			long time = 0L;
 
 			if (options.time) { time = System.currentTimeMillis(); }
 
-			Map<String, String> attrs = new LinkedHashMap<>();
-			while ((event = walker.next()) != null) {
-				boolean entering = event.entering;
-				Node node = event.node;
-
-				attrs.clear();
-				if (options.sourcepos) {
-					int[][] pos = node.sourcepos();
-					if (pos != null) {
-						attrs.put("data-sourcepos", "" + pos[0][0] + ':' +
-								pos[0][1] + '-' + pos[1][0] + ':' +
-								pos[1][1]);
-					}
-				}
+			limits.maxOutput = options.maxOutputLength;
+			limits.deadline = options.deadline != 0L ? options.deadline : Limits.deadline(options.timeout);
+
+			while (cursor.next()) {
+				limits.check();
+				boolean entering = cursor.entering();
+				Node node = cursor.node();
 
 				switch (node.type()) {
 				case TEXT:
-					out(buffer, escape(node.literal(), false));
+					outEscaped(buffer, node.literalChars());
 					break;
 
 				case SOFTBREAK:
@@ -103,21 +201,21 @@ public class HtmlRenderer implements CMarkRenderer {
 					break;
 
 				case HARDBREAK:
-					out(buffer, tag("br", null, true));
+					tag(buffer, "<br />");
 					cr(buffer);
 					break;
 
 				case EMPH:
-					out(buffer, tag(entering ? "em" : "/em", null, false));
+					tag(buffer, entering ? "<em>" : "</em>");
 					break;
 
 				case STRONG:
-					out(buffer, tag(entering ? "strong" : "/strong", null, false));
+					tag(buffer, entering ? "<strong>" : "</strong>");
 					break;
 
 				case HTML:
 					if (options.safe) {
-						out(buffer, "<!-- raw HTML omitted -->");
+						tag(buffer, "<!-- raw HTML omitted -->");
 					} else {
 						out(buffer, node.literal());
 					}
@@ -125,43 +223,43 @@ public class HtmlRenderer implements CMarkRenderer {
 
 				case LINK:
 					if (entering) {
+						start(buffer, "<a", node);
 						if (!(options.safe && potentiallyUnsafe(node.destination()))) {
-							attrs.put("href", escape(node.destination(), true));
+							attr(buffer, " href=\"", node.destination());
 						}
 						if (node.title() != null && !node.title().isEmpty()) {
-							attrs.put("title", escape(node.title(), true));
+							attr(buffer, " title=\"", node.title());
 						}
-						out(buffer, tag("a", attrs, false));
+						tag(buffer, ">");
 					} else {
-						out(buffer, tag("/a", null, false));
+						tag(buffer, "</a>");
 					}
 					break;
 
 				case IMAGE:
 					if (entering) {
-						if (disableTags == 0) {
-							if (options.safe &&
-									potentiallyUnsafe(node.destination())) {
-								out(buffer, "<img src=\"\" alt=\"");
-							} else {
-								out(buffer, "<img src=\"" + escape(node.destination(), true) +
-										"\" alt=\"");
-							}
+						if (options.safe &&
+								potentiallyUnsafe(node.destination())) {
+							tag(buffer, "<img src=\"\" alt=\"");
+						} else {
+							attr(buffer, "<img src=\"", node.destination());
+							tag(buffer, " alt=\"");
 						}
-						disableTags += 1;
-					} else {
-						disableTags -= 1;
-						if (disableTags == 0) {
-							if (node.title() != null && !node.title().isEmpty()) {
-								out(buffer, "\" title=\"" + escape(node.title(), true));
-							}
-							out(buffer, "\" />");
+						alt(buffer, node);
+						if (node.title() != null && !node.title().isEmpty()) {
+							attr(buffer, "\" title=\"", node.title());
+							tag(buffer, " />");
+						} else {
+							tag(buffer, "\" />");
 						}
+						cursor.skipChildren();
 					}
 					break;
 
 				case CODE:
-					out(buffer, tag("code", null, false) + escape(node.literal(), false) + tag("/code", null, false));
+					tag(buffer, "<code>");
+					outEscaped(buffer, node.literalChars());
+					tag(buffer, "</code>");
 					break;
 
 				case DOCUMENT:
@@ -177,9 +275,10 @@ public class HtmlRenderer implements CMarkRenderer {
 					}
 					if (entering) {
 						cr(buffer);
-						out(buffer, tag("p", attrs, false));
+						start(buffer, "<p", node);
+						tag(buffer, ">");
 					} else {
-						out(buffer, tag("/p", null, false));
+						tag(buffer, "</p>");
 						cr(buffer);
 					}
 					break;
@@ -187,68 +286,84 @@ public class HtmlRenderer implements CMarkRenderer {
 				case BLOCK_QUOTE:
 					if (entering) {
 						cr(buffer);
-						out(buffer, tag("blockquote", attrs, false));
+						start(buffer, "<blockquote", node);
+						tag(buffer, ">");
 						cr(buffer);
 					} else {
 						cr(buffer);
-						out(buffer, tag("/blockquote", null, false));
+						tag(buffer, "</blockquote>");
 						cr(buffer);
 					}
 					break;
 
 				case ITEM:
 					if (entering) {
-						out(buffer, tag("li", attrs, false));
+						start(buffer, "<li", node);
+						tag(buffer, ">");
 					} else {
-						out(buffer, tag("/li", null, false));
+						tag(buffer, "</li>");
 						cr(buffer);
 					}
 					break;
 
 				case LIST:
-					tagname = node.listType() == ListType.BULLET ? "ul" : "ol";
+					boolean bullet = node.listType() == ListType.BULLET;
 					if (entering) {
+						cr(buffer);
+						start(buffer, bullet ? "<ul" : "<ol", node);
 						int start = node.listStart();
 						if (start == 0 || start > 1) {
-							attrs.put("start", "" + start);
+							tag(buffer, " start=\"");
+							number(buffer, start);
+							tag(buffer, "\"");
 						}
-						cr(buffer);
-						out(buffer, tag(tagname, attrs, false));
+						tag(buffer, ">");
 						cr(buffer);
 					} else {
 						cr(buffer);
-						out(buffer, tag("/" + tagname, null, false));
+						tag(buffer, bullet ? "</ul>" : "</ol>");
 						cr(buffer);
 					}
 					break;
 
 				case HEADER:
-					tagname = "h" + node.level();
 					if (entering) {
 						cr(buffer);
-						out(buffer, tag(tagname, attrs, false));
+						int level = node.level();
+						start(buffer, (level >= 1 && level <= 6) ? HEADER_START[level - 1] : "<h" + level, node);
+						tag(buffer, ">");
 					} else {
-						out(buffer, tag("/" + tagname, null, false));
+						int level = node.level();
+						tag(buffer, (level >= 1 && level <= 6) ? HEADER_END[level - 1] : "</h" + level + ">");
 						cr(buffer);
 					}
 					break;
 
 				case CODE_BLOCK:
-					info_words = node.info() != null ? node.info().split(SPACE + "+") : new String[0];
-					if (info_words.length > 0 && info_words[0].length() > 0) {
-						attrs.put("class", "language-" + escape(info_words[0], true));
-					}
 					cr(buffer);
-					out(buffer, tag("pre", null, false) + tag("code", attrs, false));
-					out(buffer, escape(node.literal(), false));
-					out(buffer, tag("/code", null, false) + tag("/pre", null, false));
+					tag(buffer, "<pre>");
+					start(buffer, "<code", node);
+					String info = node.info();
+					if (info != null) {
+						// the first word of the info string
+						int end = 0;
+						while (end < info.length() && !isWhitespace(info.charAt(end))) {
+							end++;
+						}
+						if (end > 0) {
+							attr(buffer, " class=\"language-", (end < info.length()) ? info.substring(0, end) : info);
+						}
+					}
+					tag(buffer, ">");
+					outEscaped(buffer, node.literalChars());
+					tag(buffer, "</code></pre>");
 					cr(buffer);
 					break;
 
 				case HTML_BLOCK:
 					cr(buffer);
 					if (options.safe) {
-						out(buffer, "<!-- raw HTML omitted -->");
+						tag(buffer, "<!-- raw HTML omitted -->");
 					} else {
 						out(buffer, node.literal());
 					}
@@ -257,7 +372,8 @@ public class HtmlRenderer implements CMarkRenderer {
 
 				case HORIZONTAL_RULE:
 					cr(buffer);
-					out(buffer, tag("hr", attrs, true));
+					start(buffer, "<hr", node);
+					tag(buffer, " />");
 					cr(buffer);
 					break;
 
@@ -284,6 +400,15 @@ public class HtmlRenderer implements CMarkRenderer {
 
 	@Override
 	public void render(CMarkNode block, Appendable out) throws IOException {
+		if (!OutputBuffer.isBuffered(out)) {
+			OutputBuffer buffer = new OutputBuffer(out);
+			try {
+				new RenderNodes().render((Node)block, buffer);
+			} finally {
+				buffer.flush();
+			}
+			return;
+		}
 		new RenderNodes().render((Node)block, out);
 	}
 
@@ -295,6 +420,9 @@ public class HtmlRenderer implements CMarkRenderer {
 		boolean sourcepos;
 		boolean safe;
 		String softbreak = "\n";
+		long maxOutputLength = Limits.NONE;
+		long timeout;
+		long deadline;
 
 		public Options time(boolean flag) {
 			time = flag;
@@ -318,5 +446,32 @@ public class HtmlRenderer implements CMarkRenderer {
 			softbreak = value;
 			return this;
 		}
+
+		// Literals are checked against the limit before they are written,
+		// but escaping and the markup of one node may go past it before
+		// rendering stops.
+		public Options maxOutputLength(long length) {
+			if (length < 0) {
+				throw new IllegalArgumentException("length must not be negative: " + length);
+			}
+			maxOutputLength = length;
+			return this;
+		}
+
+		// milliseconds rendering may take, or 0 for no limit
+		public Options timeout(long millis) {
+			if (millis < 0) {
+				throw new IllegalArgumentException("millis must not be negative: " + millis);
+			}
+			timeout = millis;
+			return this;
+		}
+
+		// an absolute System.nanoTime() deadline shared with a parser;
+		// takes precedence over timeout
+		Options deadline(long nanos) {
+			deadline = nanos;
+			return this;
+		}
 	}
 }
@@ -7,12 +7,17 @@ package net.arnx.commonmark4j.impl;
 
 import static net.arnx.commonmark4j.impl.Common.*;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.arnx.commonmark4j.CMarkLimitException;
 import net.arnx.commonmark4j.CMarkNodeType;
+import net.arnx.commonmark4j.impl.Node.LinkNode;
+import net.arnx.commonmark4j.impl.Node.ParagraphNode;
+import net.arnx.commonmark4j.impl.Node.TextNode;
 
 class InlineParser {
 	private static final int C_NEWLINE = 10;
@@ -32,36 +37,14 @@ class InlineParser {
 	private static final int C_DOUBLEQUOTE = 34;
 
 	private static final String ESCAPABLE = Common.ESCAPABLE;
-	private static final String ESCAPED_CHAR = "\\\\" + ESCAPABLE;
-	private static final String REG_CHAR = "[^\\\\()\\x00-\\x20]";
-	private static final String IN_PARENS_NOSP = "\\((" + REG_CHAR + '|' + ESCAPED_CHAR + "|\\\\)*\\)";
 
 	private static final String ENTITY = Common.ENTITY;
 	private static final Pattern reHtmlTag = Common.reHtmlTag;
 
-	private static final Pattern rePunctuation = Pattern.compile("^[\\u2000-\\u206F\\u2E00-\\u2E7F\\\\'!\"#$%&()*+,./:;<=>?@\\[\\]^_`{|}~-]");
-
-	private static final Pattern reLinkTitle = Pattern.compile(
-			"^(?:\"(" + ESCAPED_CHAR + "|[^\"\\x00])*\"" +
-					"|" +
-					"'(" + ESCAPED_CHAR + "|[^'\\x00])*'" +
-					"|" +
-					"\\((" + ESCAPED_CHAR + "|[^)\\x00])*\\))");
-
-	private static final Pattern reLinkDestinationBraces = Pattern.compile(
-			"^(?:[<](?:[^<>\\n\\\\\\x00]|" + ESCAPED_CHAR + "|\\\\)*[>])");
-
-	private static final Pattern reLinkDestination = Pattern.compile(
-			"^(?:" + REG_CHAR + "+|" + ESCAPED_CHAR + "|\\\\|" + IN_PARENS_NOSP + ")*");
-
 	private static final Pattern reEscapable = Pattern.compile("^" + ESCAPABLE);
 
 	private static final Pattern reEntityHere = Pattern.compile("^" + ENTITY, Pattern.CASE_INSENSITIVE);
 
-	private static final Pattern reTicks = Pattern.compile("`+");
-
-	private static final Pattern reTicksHere = Pattern.compile("^`+");
-
 	private static final Pattern reEllipses = Pattern.compile("\\.\\.\\.");
 
 	private static final Pattern reDash = Pattern.compile("--+");
@@ -70,27 +53,24 @@ class InlineParser {
 
 	private static final Pattern reAutolink = Pattern.compile("^<(?:coap|doi|javascript|aaa|aaas|about|acap|cap|cid|crid|data|dav|dict|dns|file|ftp|geo|go|gopher|h323|http|https|iax|icap|im|imap|info|ipp|iris|iris.beep|iris.xpc|iris.xpcs|iris.lwz|ldap|mailto|mid|msrp|msrps|mtqp|mupdate|news|nfs|ni|nih|nntp|opaquelocktoken|pop|pres|rtsp|service|session|shttp|sieve|sip|sips|sms|snmp|soap.beep|soap.beeps|tag|tel|telnet|tftp|thismessage|tn3270|tip|tv|urn|vemmi|ws|wss|xcon|xcon-userid|xmlrpc.beep|xmlrpc.beeps|xmpp|z39.50r|z39.50s|adiumxtra|afp|afs|aim|apt|attachment|aw|beshare|bitcoin|bolo|callto|chrome|chrome-extension|com-eventbrite-attendee|content|cvs|dlna-playsingle|dlna-playcontainer|dtn|dvb|ed2k|facetime|feed|finger|fish|gg|git|gizmoproject|gtalk|hcp|icon|ipn|irc|irc6|ircs|itms|jar|jms|keyparc|lastfm|ldaps|magnet|maps|market|message|mms|ms-help|msnim|mumble|mvn|notes|oid|palm|paparazzi|platform|proxy|psyc|query|res|resource|rmi|rsync|rtmp|secondlife|sftp|sgn|skype|smb|soldat|spotify|ssh|steam|svn|teamspeak|things|udp|unreal|ut2004|ventrilo|view-source|webcal|wtai|wyciwyg|xfire|xri|ymsgr):[^<>\\x00-\\x20]*>", Pattern.CASE_INSENSITIVE);
 
-	private static final Pattern reSpnl = Pattern.compile("^ *(?:\\n *)?");
-
-	private static final Pattern reWhitespaceChar = Pattern.compile("^" + SPACE);
-
 	private static final Pattern reWhitespace = Pattern.compile(SPACE + "+");
 
-	private static final Pattern reFinalSpace = Pattern.compile(" *$");
-
 	private static final Pattern reInitialSpace = Pattern.compile("^ *");
 
 	private static final Pattern reSpaceAtEndOfLine = Pattern.compile("^ *(?:\\n|$)");
 
-	private static final Pattern reLinkLabel = Pattern.compile("^\\[(?:[^\\\\\\[\\]]|" + ESCAPED_CHAR + "|\\\\){0,1000}\\]");
-
 	// Matches a string of non-special characters.
 	private static final Pattern reMain = Pattern.compile("^[^\\n`\\[\\]\\\\!<&*_'\"]+" /*m*/);
 
-	private static Node text(String s) {
-		Node node = new Node(CMarkNodeType.TEXT, (int[][])null);
-		node._literal = s;
-		return node;
+	private TextNode text(CharSequence s) {
+		this.limits.nodes++;
+		return new TextNode(CMarkNodeType.TEXT, s);
+	}
+
+	// Create an inline node, counting it against the node limit.
+	private Node newNode(CMarkNodeType type) {
+		this.limits.nodes++;
+		return Node.create(type, 0, 0);
 	}
 
 	// INLINE PARSER
@@ -102,15 +82,29 @@ class InlineParser {
 	// If re matches at current position in the subject, advance
 	// position in subject and return the match; otherwise return null.
 	String match(Pattern re) {
-		Matcher m = re.matcher((this.pos < this.subject.length()) ? this.subject.substring(this.pos) : "");
+		int len = this.subject.length();
+		Matcher m = re.matcher(this.subject).region((this.pos < len) ? this.pos : len, len);
 		if (!m.find()) {
 			return null;
 		} else {
-			this.pos += m.start() + m.group().length();
+			this.pos = m.end();
 			return m.group();
 		}
 	}
 
+	// Like match, but only returns whether re matched, without copying
+	// out the match.
+	boolean skip(Pattern re) {
+		int len = this.subject.length();
+		Matcher m = re.matcher(this.subject).region((this.pos < len) ? this.pos : len, len);
+		if (!m.find()) {
+			return false;
+		} else {
+			this.pos = m.end();
+			return true;
+		}
+	}
+
 	// Returns the code for the character at the current subject position, or -1
 	// there are no more characters.
 	int peek() {
@@ -123,7 +117,19 @@ class InlineParser {
 
 	// Parse zero or more space characters, including at most one newline
 	boolean spnl() {
-		this.match(reSpnl);
+		String subj = this.subject;
+		int len = subj.length();
+		int p = this.pos;
+		while (p < len && subj.charAt(p) == ' ') {
+			p++;
+		}
+		if (p < len && subj.charAt(p) == '\n') {
+			p++;
+			while (p < len && subj.charAt(p) == ' ') {
+				p++;
+			}
+		}
+		this.pos = p;
 		return true;
 	}
 
@@ -134,29 +140,89 @@ class InlineParser {
 	// Attempt to parse backticks, adding either a backtick code span or a
 	// literal sequence of backticks.
 	boolean parseBackticks(Node block) {
-		String ticks = this.match(reTicksHere);
-		if (ticks == null) {
+		int startpos = this.pos;
+		while (this.peek() == C_BACKTICK) {
+			this.pos++;
+		}
+		int numticks = this.pos - startpos;
+		if (numticks == 0) {
 			return false;
 		}
 		int afterOpenTicks = this.pos;
-		String matched;
-		Node node;
-		while ((matched = this.match(reTicks)) != null) {
-			if (matched.equals(ticks)) {
-				node = new Node(CMarkNodeType.CODE, null);
-				node._literal = Common.replace(this.subject.substring(afterOpenTicks,
-						this.pos - ticks.length())
-						.trim(), reWhitespace, " ");
-				block.appendChild(node);
-				return true;
-			}
+		int closepos = this.scanToCloseBackticks(numticks);
+		if (closepos != -1) {
+			TextNode node = (TextNode)this.newNode(CMarkNodeType.CODE);
+			node._literal = this.codeContent(afterOpenTicks, closepos);
+			block.appendChild(node);
+			this.pos = closepos + numticks;
+			return true;
 		}
 		// If we got here, we didn't match a closing backtick sequence.
 		this.pos = afterOpenTicks;
-		block.appendChild(text(ticks));
+		block.appendChild(text(new Slice(this.subject, startpos, afterOpenTicks)));
 		return true;
 	}
 
+	// The content of a code span between start and end: trimmed, with
+	// each run of whitespace made a single space.  When that changes
+	// nothing, as is usual, it is a slice of the subject.
+	CharSequence codeContent(int start, int end) {
+		String subj = this.subject;
+		while (start < end && subj.charAt(start) <= ' ') {
+			start++;
+		}
+		while (start < end && subj.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		for (int i = start; i < end; i++) {
+			char c = subj.charAt(i);
+			if (isWhitespace(c) && (c != ' ' || (i + 1 < end && isWhitespace(subj.charAt(i + 1))))) {
+				return Common.replace(subj.substring(start, end), reWhitespace, " ");
+			}
+		}
+		return new Slice(subj, start, end);
+	}
+
+	// Return the position of the first backtick string of exactly numticks
+	// backticks after the current position, or -1 if there is none.  While
+	// scanning we remember where the last string of each length was seen;
+	// once a scan has reached the end of the subject, an opener with no
+	// string of its length ahead fails at once, so unmatched openers do not
+	// rescan the rest of the subject.
+	int scanToCloseBackticks(int numticks) {
+		if (this.scannedForBackticks &&
+				(numticks >= this.backticks.length || this.backticks[numticks] < this.pos)) {
+			return -1;
+		}
+		String subj = this.subject;
+		int len = subj.length();
+		int p = this.pos;
+		while (true) {
+			while (p < len && subj.charAt(p) != C_BACKTICK) {
+				p++;
+			}
+			if (p >= len) {
+				break;
+			}
+			int start = p;
+			while (p < len && subj.charAt(p) == C_BACKTICK) {
+				p++;
+			}
+			int count = p - start;
+			if (!this.scannedForBackticks) {
+				if (count >= this.backticks.length) {
+					this.backticks = Arrays.copyOf(this.backticks, Math.max(count + 1, this.backticks.length * 2));
+				}
+				this.backticks[count] = start;
+			}
+			if (count == numticks) {
+				return start;
+			}
+		}
+		this.scannedForBackticks = true;
+		return -1;
+	}
+
 	// Parse a backslash-escaped special character, adding either the escaped
 	// character, a hard line break (if the backslash is followed by a newline),
 	// or a literal backslash to the block's children.  Assumes current character
@@ -167,7 +233,7 @@ class InlineParser {
 		this.pos += 1;
 		if (this.peek() == C_NEWLINE) {
 			this.pos += 1;
-			node = new Node(CMarkNodeType.HARDBREAK, null);
+			node = this.newNode(CMarkNodeType.HARDBREAK);
 			block.appendChild(node);
 		} else if (this.pos < subj.length() && reEscapable.matcher(subj.substring(this.pos, this.pos+1)).find()) {
 			block.appendChild(text(subj.substring(this.pos, this.pos+1)));
@@ -182,22 +248,28 @@ class InlineParser {
 	boolean parseAutolink(Node block) {
 		String m;
 		String dest;
-		Node node;
+		LinkNode node;
 		if ((m = this.match(reEmailAutolink)) != null) {
 			dest = m.substring(1, m.length() - 1);
-			node = new Node(CMarkNodeType.LINK, null);
+			node = (LinkNode)this.newNode(CMarkNodeType.LINK);
 			node._destination = normalizeURI("mailto:" + dest);
 			node._title = "";
 			node.appendChild(text(dest));
 			block.appendChild(node);
+			if (this.nodeIndex != null) {
+				this.nodeIndex.add(node);
+			}
 			return true;
 		} else if ((m = this.match(reAutolink)) != null) {
 			dest = m.substring(1, m.length() - 1);
-			node = new Node(CMarkNodeType.LINK, null);
+			node = (LinkNode)this.newNode(CMarkNodeType.LINK);
 			node._destination = normalizeURI(dest);
 			node._title = "";
 			node.appendChild(text(dest));
 			block.appendChild(node);
+			if (this.nodeIndex != null) {
+				this.nodeIndex.add(node);
+			}
 			return true;
 		} else {
 			return false;
@@ -206,12 +278,12 @@ class InlineParser {
 
 	// Attempt to parse a raw HTML tag.
 	boolean parseHtmlTag(Node block) {
-		String m = this.match(reHtmlTag);
-		if (m == null) {
+		int startpos = this.pos;
+		if (!this.skip(reHtmlTag)) {
 			return false;
 		} else {
-			Node node = new Node(CMarkNodeType.HTML, null);
-			node._literal = m;
+			TextNode node = (TextNode)this.newNode(CMarkNodeType.HTML);
+			node._literal = new Slice(this.subject, startpos, this.pos);
 			block.appendChild(node);
 			return true;
 		}
@@ -223,7 +295,7 @@ class InlineParser {
 	// function for strong/emph parsing.
 	Delimiters scanDelims(int cc) {
 		int numdelims = 0;
-		String char_before, char_after; int cc_after;
+		int cc_before, cc_after;
 		int startpos = this.pos;
 		boolean left_flanking, right_flanking, can_open, can_close;
 		boolean after_is_whitespace, after_is_punctuation, before_is_whitespace, before_is_punctuation;
@@ -242,19 +314,14 @@ class InlineParser {
 			return null;
 		}
 
-		char_before = startpos == 0 ? "\n" : this.subject.substring(startpos - 1, startpos);
+		cc_before = startpos == 0 ? C_NEWLINE : this.subject.codePointBefore(startpos);
 
-		cc_after = this.peek();
-		if (cc_after == -1) {
-			char_after = "\n";
-		} else {
-			char_after = fromCodePoint(cc_after);
-		}
+		cc_after = this.pos < this.subject.length() ? this.subject.codePointAt(this.pos) : C_NEWLINE;
 
-		after_is_whitespace = reWhitespaceChar.matcher(char_after).find();
-		after_is_punctuation = rePunctuation.matcher(char_after).find();
-		before_is_whitespace = reWhitespaceChar.matcher(char_before).find();
-		before_is_punctuation = rePunctuation.matcher(char_before).find();
+		after_is_whitespace = isWhitespace(cc_after);
+		after_is_punctuation = isPunctuation(cc_after);
+		before_is_whitespace = isWhitespace(cc_before);
+		before_is_punctuation = isPunctuation(cc_before);
 
 		left_flanking = !after_is_whitespace &&
 				!(after_is_punctuation && !before_is_whitespace && !before_is_punctuation);
@@ -289,7 +356,7 @@ class InlineParser {
 		}
 		int numdelims = res.numdelims;
 		int startpos = this.pos;
-		String contents;
+		CharSequence contents;
 
 		this.pos += numdelims;
 		if (cc == C_SINGLEQUOTE) {
@@ -297,9 +364,9 @@ class InlineParser {
 		} else if (cc == C_DOUBLEQUOTE) {
 			contents = "\u201C";
 		} else {
-			contents = this.subject.substring(startpos, this.pos);
+			contents = new Slice(this.subject, startpos, this.pos);
 		}
-		Node node = text(contents);
+		TextNode node = text(contents);
 		block.appendChild(node);
 
 		// Add entry to stack for this opener
@@ -339,19 +406,31 @@ class InlineParser {
 		}
 	}
 
+	private static int openersBottomIndex(int cc) {
+		switch (cc) {
+		case C_UNDERSCORE:
+			return 0;
+		case C_ASTERISK:
+			return 1;
+		case C_SINGLEQUOTE:
+			return 2;
+		default:
+			return 3;
+		}
+	}
+
 	void processEmphasis(Delimiters stack_bottom) {
 		Delimiters opener, closer, old_closer;
-		Node opener_inl, closer_inl;
+		TextNode opener_inl, closer_inl;
 		Delimiters tempstack;
 		int use_delims;
 		Node tmp, next;
 		boolean opener_found;
-		Map<Integer, Delimiters> openers_bottom = new HashMap<>();
-
-		openers_bottom.put(C_UNDERSCORE, stack_bottom);
-		openers_bottom.put(C_ASTERISK, stack_bottom);
-		openers_bottom.put(C_SINGLEQUOTE, stack_bottom);
-		openers_bottom.put(C_DOUBLEQUOTE, stack_bottom);
+		// Lower bounds for opener searches, indexed by openersBottomIndex.
+		// An opener matches a closer of the same character whatever the
+		// lengths of the two runs, so once a search has failed no later
+		// closer of that character can find an opener below this point.
+		Delimiters[] openers_bottom = { stack_bottom, stack_bottom, stack_bottom, stack_bottom };
 
 		// find first closer above stack_bottom:
 		closer = this.delimiters;
@@ -368,10 +447,11 @@ class InlineParser {
 				closer = closer.next;
 			} else {
 				// found emphasis closer. now look back for first matching opener:
+				Delimiters opener_bottom = openers_bottom[openersBottomIndex(closercc)];
 				opener = closer.previous;
 				opener_found = false;
 				while (opener != null && opener != stack_bottom &&
-						opener != openers_bottom.get(closercc)) {
+						opener != opener_bottom) {
 					if (opener.cc == closer.cc && opener.can_open) {
 						opener_found = true;
 						break;
@@ -399,14 +479,14 @@ class InlineParser {
 						opener.numdelims -= use_delims;
 						closer.numdelims -= use_delims;
 						opener_inl._literal = (opener_inl._literal.length() >= use_delims) ?
-								opener_inl._literal.substring(0,
+								opener_inl._literal.subSequence(0,
 										opener_inl._literal.length() - use_delims) : "";
 						closer_inl._literal = (closer_inl._literal.length() >= use_delims) ?
-								closer_inl._literal.substring(0,
+								closer_inl._literal.subSequence(0,
 										closer_inl._literal.length() - use_delims) : "";
 
 						// build contents for new emph element
-						Node emph = new Node(use_delims == 1 ? CMarkNodeType.EMPH : CMarkNodeType.STRONG, null);
+						Node emph = this.newNode(use_delims == 1 ? CMarkNodeType.EMPH : CMarkNodeType.STRONG);
 
 						tmp = opener_inl._next;
 						while (tmp != null && tmp != closer_inl) {
@@ -453,7 +533,7 @@ class InlineParser {
 				}
 				if (!opener_found) {
 					// Set lower bound for future searches for openers:
-					openers_bottom.put(closercc, old_closer.previous);
+					openers_bottom[openersBottomIndex(closercc)] = old_closer.previous;
 					if (!old_closer.can_open) {
 						// We can remove a closer that can't be an opener,
 						// once we've seen there's no matching opener:
@@ -473,41 +553,193 @@ class InlineParser {
 	// Attempt to parse link title (sans quotes), returning the string
 	// or null if no match.
 	String parseLinkTitle() {
-		String title = this.match(reLinkTitle);
-		if (title == null) {
+		int start = this.pos;
+		int end = this.scanLinkTitle(start);
+		if (end == -1) {
 			return null;
 		} else {
+			this.pos = end;
 			// chop off quotes from title and unescape:
-			return unescapeString(title.substring(1, 1 + title.length() - 2));
+			return unescapeString(this.subject.substring(start + 1, end - 1));
 		}
 	}
 
 	// Attempt to parse link destination, returning the string or
 	// null if no match.
 	String parseLinkDestination() {
-		String res = this.match(reLinkDestinationBraces);
-		if (res == null) {
-			res = this.match(reLinkDestination);
-			if (res == null) {
-				return null;
-			} else {
-				return normalizeURI(unescapeString(res));
-			}
+		int start = this.pos;
+		int end = this.scanLinkDestinationBraces(start);
+		if (end == -1) {
+			end = this.scanLinkDestination(start);
+			this.pos = end;
+			return normalizeURI(unescapeString(this.subject.substring(start, end)));
 		} else {  // chop off surrounding <..>:
-			return normalizeURI(unescapeString(res.substring(1, 1 + res.length() - 2)));
+			this.pos = end;
+			return normalizeURI(unescapeString(this.subject.substring(start + 1, end - 1)));
 		}
 	}
 
 	// Attempt to parse a link label, returning number of characters parsed.
 	int parseLinkLabel() {
-		String m = this.match(reLinkLabel);
-		if (m == null || m.length() > 1001) {
+		int n = this.scanLinkLabel(this.pos);
+		if (n > 1001) {
 			return 0;
 		} else {
-			return m.length();
+			this.pos += n;
+			return n;
 		}
 	}
 
+	// The scanners below replace the link regular expressions of
+	// commonmark.js.  They work on positions in the subject, never copy
+	// it, and look at each character at most once.  A backslash always
+	// escapes the following escapable character, so a closer is either
+	// escaped or not; there is nothing to backtrack into.
+
+	// Scan a link title ("...", '...' or (...)) at p, returning the
+	// position after it or -1.
+	int scanLinkTitle(int p) {
+		String subj = this.subject;
+		int len = subj.length();
+		if (p >= len) {
+			return -1;
+		}
+		char closer;
+		int kind;
+		switch (subj.charAt(p)) {
+		case '"':
+			closer = '"';
+			kind = 0;
+			break;
+		case '\'':
+			closer = '\'';
+			kind = 1;
+			break;
+		case '(':
+			closer = ')';
+			kind = 2;
+			break;
+		default:
+			return -1;
+		}
+		if (p >= this.noTitleCloserFrom[kind]) {
+			return -1;
+		}
+		int i = p + 1;
+		while (i < len) {
+			char c = subj.charAt(i);
+			if (c == closer) {
+				return i + 1;
+			} else if (c == '\0') {
+				return -1;
+			} else if (c == '\\' && i + 1 < len && isEscapable(subj.charAt(i + 1))) {
+				i += 2;
+			} else {
+				i++;
+			}
+		}
+		// A later title of this kind would run off the end as well, so
+		// remember not to scan for it again.
+		this.noTitleCloserFrom[kind] = p;
+		return -1;
+	}
+
+	// Scan a link destination in pointy brackets at p, returning the
+	// position after it or -1.
+	int scanLinkDestinationBraces(int p) {
+		String subj = this.subject;
+		int len = subj.length();
+		if (p >= len || subj.charAt(p) != '<') {
+			return -1;
+		}
+		int i = p + 1;
+		while (i < len) {
+			char c = subj.charAt(i);
+			if (c == '>') {
+				return i + 1;
+			} else if (c == '<' || c == '\n' || c == '\0') {
+				break;
+			} else if (c == '\\' && i + 1 < len && isEscapable(subj.charAt(i + 1))) {
+				i += 2;
+			} else {
+				i++;
+			}
+		}
+		return -1;
+	}
+
+	// Scan a link destination without pointy brackets at p, returning
+	// the position after it.  The destination may be empty.
+	int scanLinkDestination(int p) {
+		String subj = this.subject;
+		int len = subj.length();
+		int i = p;
+		while (i < len) {
+			char c = subj.charAt(i);
+			if (c == '\\') {
+				i += (i + 1 < len && isEscapable(subj.charAt(i + 1))) ? 2 : 1;
+			} else if (c == '(') {
+				int end = this.scanLinkDestinationParens(i);
+				if (end == -1) {
+					break;
+				}
+				i = end;
+			} else if (c == ')' || c <= ' ') {
+				break;
+			} else {
+				i++;
+			}
+		}
+		return i;
+	}
+
+	// Scan one level of balanced parentheses in a link destination at p,
+	// returning the position after the closing parenthesis or -1.
+	int scanLinkDestinationParens(int p) {
+		String subj = this.subject;
+		int len = subj.length();
+		int i = p + 1;
+		while (i < len) {
+			char c = subj.charAt(i);
+			if (c == ')') {
+				return i + 1;
+			} else if (c == '(' || c <= ' ') {
+				break;
+			} else if (c == '\\' && i + 1 < len && isEscapable(subj.charAt(i + 1))) {
+				i += 2;
+			} else {
+				i++;
+			}
+		}
+		return -1;
+	}
+
+	// Scan a link label at p, returning its length including brackets,
+	// or 0.  At most 1000 characters or escapes are examined, like the
+	// bounded repetition of the original regular expression.
+	int scanLinkLabel(int p) {
+		String subj = this.subject;
+		int len = subj.length();
+		if (p >= len || subj.charAt(p) != '[') {
+			return 0;
+		}
+		int i = p + 1;
+		for (int count = 0; i < len && count < 1000; count++) {
+			char c = subj.charAt(i);
+			if (c == ']' || c == '[') {
+				break;
+			} else if (c == '\\' && i + 1 < len && isEscapable(subj.charAt(i + 1))) {
+				i += 2;
+			} else {
+				i++;
+			}
+		}
+		if (i < len && subj.charAt(i) == ']') {
+			return i + 1 - p;
+		}
+		return 0;
+	}
+
 	// Add open bracket to delimiter stack and add a text node to block's children.
 	boolean parseOpenBracket(Node block) {
 		int startpos = this.pos;
@@ -517,18 +749,7 @@ class InlineParser {
 		block.appendChild(node);
 
 		// Add entry to stack for this opener
-		this.delimiters = new Delimiters(C_OPEN_BRACKET,
-				1,
-				node,
-				this.delimiters,
-				null,
-				true,
-				false,
-				startpos,
-				true);
-		if (this.delimiters.previous != null) {
-			this.delimiters.previous.next = this.delimiters;
-		}
+		this.addBracket(node, startpos, false);
 
 		return true;
 
@@ -546,49 +767,50 @@ class InlineParser {
 			block.appendChild(node);
 
 			// Add entry to stack for this opener
-			this.delimiters = new Delimiters(C_BANG,
-					1,
-					node,
-					this.delimiters,
-					null,
-					true,
-					false,
-					startpos + 1,
-					true);
-			if (this.delimiters.previous != null) {
-				this.delimiters.previous.next = this.delimiters;
-			}
+			this.addBracket(node, startpos + 1, true);
 		} else {
 			block.appendChild(text("!"));
 		}
 		return true;
 	}
 
-	// Try to match close bracket against an opening in the delimiter
+	void addBracket(Node node, int index, boolean image) {
+		if (this.brackets != null) {
+			this.brackets.bracketAfter = true;
+		}
+		this.brackets = new Brackets(node,
+				this.brackets,
+				this.delimiters,
+				index,
+				image,
+				true);
+		if (this.nodeIndex != null) {
+			this.brackets.indexed = this.nodeIndex.open();
+		}
+	}
+
+	void removeBracket() {
+		this.brackets = this.brackets.previous;
+	}
+
+	// Try to match close bracket against an opening in the bracket
 	// stack.  Add either a link or image, or a plain [ character,
-	// to block's children.  If there is a matching delimiter,
-	// remove it from the delimiter stack.
+	// to block's children.  If there is a matching bracket,
+	// remove it from the bracket stack.
 	boolean parseCloseBracket(Node block) {
 		int startpos;
 		boolean is_image;
 		String dest = null;
 		String title = null;
 		boolean matched = false;
-		String reflabel;
-		Delimiters opener;
+		String reflabel = null;
+		Brackets opener;
 
 		this.pos += 1;
 		startpos = this.pos;
 
-		// look through stack of delimiters for a [ or ![
-		opener = this.delimiters;
-
-		while (opener != null) {
-			if (opener.cc == C_OPEN_BRACKET || opener.cc == C_BANG) {
-				break;
-			}
-			opener = opener.previous;
-		}
+		// get last [ or ![
+		opener = this.brackets;
 
 		if (opener == null) {
 			// no matched opener, just return a literal
@@ -599,13 +821,13 @@ class InlineParser {
 		if (!opener.active) {
 			// no matched opener, just return a literal
 			block.appendChild(text("]"));
-			// take opener off emphasis stack
-			this.removeDelimiter(opener);
+			// take opener off bracket stack
+			this.removeBracket();
 			return true;
 		}
 
 		// If we got here, open is a potential opener
-		is_image = opener.cc == C_BANG;
+		is_image = opener.image;
 
 		// Check to see if we have a link/image
 
@@ -617,7 +839,7 @@ class InlineParser {
 					this.spnl() &&
 					// make sure there's a space before the title:
 					this.pos - 1 < this.subject.length() &&
-					(reWhitespaceChar.matcher(this.subject.substring(this.pos - 1, this.pos)).find() &&
+					(isWhitespace(this.subject.charAt(this.pos - 1)) &&
 							(title = this.parseLinkTitle()) != null || true) &&
 					this.spnl() &&
 					this.peek() == C_CLOSE_PAREN) {
@@ -632,8 +854,12 @@ class InlineParser {
 			int beforelabel = this.pos;
 			int n = this.parseLinkLabel();
 			if (n == 0 || n == 2) {
-				// empty or missing second label
-				reflabel = this.subject.substring(opener.index, startpos);
+				// empty or missing second label: use the first label, unless
+				// it cannot be one because it contains a bracket or is longer
+				// than any label in refmap.
+				if (!opener.bracketAfter && startpos - opener.index <= 1001) {
+					reflabel = this.subject.substring(opener.index, startpos);
+				}
 			} else {
 				reflabel = this.subject.substring(beforelabel, beforelabel + n);
 			}
@@ -643,7 +869,7 @@ class InlineParser {
 			}
 
 			// lookup rawlabel in refmap
-			Ref link = this.refmap.get(normalizeReference(reflabel));
+			Ref link = reflabel != null ? this.refmap.get(normalizeReference(reflabel)) : null;
 			if (link != null) {
 				dest = link.destination;
 				title = link.title;
@@ -652,7 +878,7 @@ class InlineParser {
 		}
 
 		if (matched) {
-			Node node = new Node(is_image ? CMarkNodeType.IMAGE : CMarkNodeType.LINK, null);
+			LinkNode node = (LinkNode)this.newNode(is_image ? CMarkNodeType.IMAGE : CMarkNodeType.LINK);
 			node._destination = dest;
 			node._title = title != null ? title : "";
 
@@ -665,17 +891,25 @@ class InlineParser {
 				tmp = next;
 			}
 			block.appendChild(node);
-			this.processEmphasis(opener.previous);
+			if (this.nodeIndex != null) {
+				this.nodeIndex.add(node, opener.indexed);
+			}
+			this.processEmphasis(opener.previousDelimiter);
+			this.removeBracket();
 
 			opener.node.unlink();
 
-			// processEmphasis will remove this and later delimiters.
+			// processEmphasis will remove later delimiters.
 			// Now, for a link, we also deactivate earlier link openers.
-			// (no links in links)
+			// (no links in links)  Openers below an inactive one were
+			// deactivated by an earlier link, so we can stop there.
 			if (!is_image) {
-				opener = this.delimiters;
+				opener = this.brackets;
 				while (opener != null) {
-					if (opener.cc == C_OPEN_BRACKET) {
+					if (!opener.image) {
+						if (!opener.active) {
+							break;
+						}
 						opener.active = false; // deactivate this opener
 					}
 					opener = opener.previous;
@@ -686,7 +920,7 @@ class InlineParser {
 
 		} else { // no match
 
-			this.removeDelimiter(opener);  // remove this opener from stack
+			this.removeBracket();  // remove this opener from stack
 			this.pos = startpos;
 			block.appendChild(text("]"));
 			return true;
@@ -708,30 +942,35 @@ class InlineParser {
 	// Parse a run of ordinary characters, or a single character with
 	// a special meaning in markdown, as a plain string.
 	boolean parseString(Node block) {
+		int startpos = this.pos;
 		String m;
-		if ((m = this.match(reMain)) != null) {
-			if (this.options.smart) {
-				block.appendChild(text(
-						replace(replace(m, reEllipses, "\u2026"),
-								reDash, (m2) -> {
-									int enCount = 0;
-									int emCount = 0;
-									if (m2.group().length() % 3 == 0) { // If divisible by 3, use all em dashes
-										emCount = m2.group().length() / 3;
-									} else if (m2.group().length() % 2 == 0) { // If divisible by 2, use all en dashes
-										enCount = m2.group().length() / 2;
-									} else if (m2.group().length() % 3 == 2) { // If 2 extra dashes, use en dash for last 2; em dashes for rest
-										enCount = 1;
-										emCount = (m2.group().length() - 2) / 3;
-									} else { // Use en dashes for last 4 hyphens; em dashes for rest
-										enCount = 2;
-										emCount = (m2.group().length() - 4) / 3;
-									}
-									return repeat("\u2014", emCount) + repeat("\u2013", enCount);
-								})));
+		if (!this.options.smart) {
+			// the text is the match itself, so keep it as a slice
+			if (this.skip(reMain)) {
+				block.appendChild(text(new Slice(this.subject, startpos, this.pos)));
+				return true;
 			} else {
-				block.appendChild(text(m));
+				return false;
 			}
+		} else if ((m = this.match(reMain)) != null) {
+			block.appendChild(text(
+					replace(replace(m, reEllipses, "\u2026"),
+							reDash, (m2) -> {
+								int enCount = 0;
+								int emCount = 0;
+								if (m2.group().length() % 3 == 0) { // If divisible by 3, use all em dashes
+									emCount = m2.group().length() / 3;
+								} else if (m2.group().length() % 2 == 0) { // If divisible by 2, use all en dashes
+									enCount = m2.group().length() / 2;
+								} else if (m2.group().length() % 3 == 2) { // If 2 extra dashes, use en dash for last 2; em dashes for rest
+									enCount = 1;
+									emCount = (m2.group().length() - 2) / 3;
+								} else { // Use en dashes for last 4 hyphens; em dashes for rest
+									enCount = 2;
+									emCount = (m2.group().length() - 4) / 3;
+								}
+								return repeat("\u2014", emCount) + repeat("\u2013", enCount);
+							})));
 			return true;
 		} else {
 			return false;
@@ -743,25 +982,31 @@ class InlineParser {
 	boolean parseNewline(Node block) {
 		this.pos += 1; // assume we're at a \n
 		// check previous node for trailing spaces
-		Node lastc = block._lastChild;
-		if (lastc != null && lastc.type() == CMarkNodeType.TEXT
+		TextNode lastc = block._lastChild != null && block._lastChild.type() == CMarkNodeType.TEXT ?
+				(TextNode)block._lastChild : null;
+		if (lastc != null
 				&& lastc._literal.length() >= 1
 				&& lastc._literal.charAt(lastc._literal.length() - 1) == ' ') {
 			boolean hardbreak = lastc._literal.length() >= 2
 					&& lastc._literal.charAt(lastc._literal.length() - 2) == ' ';
-			lastc._literal = replace(lastc._literal, reFinalSpace, "");
-			block.appendChild(new Node(hardbreak ? CMarkNodeType.HARDBREAK : CMarkNodeType.SOFTBREAK, null));
+			int end = lastc._literal.length();
+			while (end > 0 && lastc._literal.charAt(end - 1) == ' ') {
+				end--;
+			}
+			lastc._literal = lastc._literal.subSequence(0, end);
+			block.appendChild(this.newNode(hardbreak ? CMarkNodeType.HARDBREAK : CMarkNodeType.SOFTBREAK));
 		} else {
-			block.appendChild(new Node(CMarkNodeType.SOFTBREAK, null));
+			block.appendChild(this.newNode(CMarkNodeType.SOFTBREAK));
 		}
 		this.match(reInitialSpace); // gobble leading spaces in next line
 		return true;
 	}
 
 	// Attempt to parse a link reference, modifying refmap.
-	int parseReference(String s, Map<String, Ref> refmap) {
+	int parseReference(String s, int start, Map<String, Ref> refmap) {
 		this.subject = s;
-		this.pos = 0;
+		this.pos = start;
+		Arrays.fill(this.noTitleCloserFrom, Integer.MAX_VALUE);
 		String rawlabel;
 		String dest;
 		String title;
@@ -773,7 +1018,7 @@ class InlineParser {
 		if (matchChars == 0) {
 			return 0;
 		} else {
-			rawlabel = this.subject.substring(0, matchChars);
+			rawlabel = this.subject.substring(startpos, startpos + matchChars);
 		}
 
 		// colon:
@@ -893,20 +1138,32 @@ class InlineParser {
 
 	// Parse string content in block into inline children,
 	// using refmap to resolve references.
-	void parseInlines(Node block) {
+	void parseInlines(ParagraphNode block) throws CMarkLimitException {
 		this.subject = block._string_content.trim();
 		this.pos = 0;
 		this.delimiters = null;
+		this.brackets = null;
+		Arrays.fill(this.noTitleCloserFrom, Integer.MAX_VALUE);
+		this.backticks = new int[16];
+		this.scannedForBackticks = false;
 		while (this.parseInline(block)) {
+			this.limits.check();
 		}
 		block._string_content = null; // allow raw string to be garbage collected
 		this.processEmphasis(null);
+		this.limits.check();
 	}
 
 	String subject = "";
 	Delimiters delimiters;
+	Brackets brackets;
 	int pos = 0;
+	int[] noTitleCloserFrom = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+	int[] backticks = new int[16];
+	boolean scannedForBackticks = false;
 	Map<String, Ref> refmap = new HashMap<>();
+	Limits limits = new Limits();
+	NodeIndex nodeIndex;
 	Parser.Options options;
 
 	// The InlineParser object.
@@ -914,14 +1171,14 @@ class InlineParser {
 		this.options = options;
 	}
 
-	public void parse(Node block) {
+	public void parse(ParagraphNode block) throws CMarkLimitException {
 		parseInlines(block);
 	}
 
 	static class Delimiters {
 		int cc;
 		int numdelims;
-		Node node;
+		TextNode node;
 		Delimiters previous;
 		Delimiters next;
 		boolean can_open;
@@ -931,7 +1188,7 @@ class InlineParser {
 
 		Delimiters(int cc,
 				int numdelims,
-				Node node,
+				TextNode node,
 				Delimiters previous,
 				Delimiters next,
 				boolean can_open,
@@ -951,4 +1208,30 @@ class InlineParser {
 		}
 	}
 
+	static class Brackets {
+		Node node;
+		Brackets previous;
+		Delimiters previousDelimiter;
+		int index;
+		boolean image;
+		boolean active;
+		boolean bracketAfter;
+		int indexed; // number the node index gave it when opened
+
+		Brackets(Node node,
+				Brackets previous,
+				Delimiters previousDelimiter,
+				int index,
+				boolean image,
+				boolean active) {
+
+			this.node = node;
+			this.previous = previous;
+			this.previousDelimiter = previousDelimiter;
+			this.index = index;
+			this.image = image;
+			this.active = active;
+		}
+	}
+
 }
@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import java.util.Map;
+
+// The inline parsing that a document parsed with Parser.Options.lazy
+// left for later, shared by its paragraphs and headers.  It is also the
+// lock of the document: a block is parsed while holding it, by an
+// InlineParser of its own, so that several threads may read the tree.
+final class LazyInlines {
+	final Parser.Options options;
+	final Map<String, Ref> refmap;
+	final Limits limits;
+
+	LazyInlines(Parser.Options options, Map<String, Ref> refmap, Limits limits) {
+		this.options = options;
+		this.refmap = refmap;
+		this.limits = limits;
+	}
+
+	InlineParser newParser() {
+		InlineParser inlineParser = new InlineParser(this.options);
+		inlineParser.refmap = this.refmap;
+		inlineParser.limits = this.limits;
+		return inlineParser;
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import net.arnx.commonmark4j.CMarkLimitException;
+import net.arnx.commonmark4j.CMarkLimitException.Limit;
+
+// Resources used by one document, and the limits on them.  Parsers
+// and renderers bump the counters as they go and call check() from
+// their main loops; it only reads the clock every so often.
+class Limits {
+	static final long NONE = Long.MAX_VALUE;
+
+	long maxInput = NONE;
+	long maxNodes = NONE;
+	long maxOutput = NONE;
+	long deadline = 0L; // System.nanoTime() to stop at, or 0
+
+	long input;
+	long nodes;
+	long output;
+	int checks;
+
+	// Returns the deadline for a timeout in milliseconds starting now,
+	// or 0 for none.
+	static long deadline(long timeout) {
+		return timeout > 0 ? System.nanoTime() + timeout * 1000000L : 0L;
+	}
+
+	// Throws if writing length more characters would exceed maxOutput.
+	// Renderers call it before writing a literal, with the length before
+	// escaping, so a long literal is not written past the limit; check()
+	// then catches what escaping and markup add.
+	void checkOutput(long length) throws CMarkLimitException {
+		if (length > this.maxOutput - this.output) {
+			throw new CMarkLimitException(Limit.OUTPUT_LENGTH, "output exceeds " + this.maxOutput + " characters");
+		}
+	}
+
+	void check() throws CMarkLimitException {
+		if (this.input > this.maxInput) {
+			throw new CMarkLimitException(Limit.INPUT_LENGTH, "input exceeds " + this.maxInput + " characters");
+		}
+		if (this.nodes > this.maxNodes) {
+			throw new CMarkLimitException(Limit.NODE_COUNT, "document exceeds " + this.maxNodes + " nodes");
+		}
+		if (this.output > this.maxOutput) {
+			throw new CMarkLimitException(Limit.OUTPUT_LENGTH, "output exceeds " + this.maxOutput + " characters");
+		}
+		if (this.deadline != 0L && (++this.checks & 0xFF) == 0 &&
+				System.nanoTime() - this.deadline > 0) {
+			throw new CMarkLimitException(Limit.TIMEOUT, "timed out");
+		}
+	}
+}
@@ -7,18 +7,18 @@ package net.arnx.commonmark4j.impl;
 
 class ListData {
 	ListType type;
-	Boolean tight;
+	boolean tight;
 	char bulletChar;
-	Integer start;
-	Character delimiter;
+	int start;
+	char delimiter;
 	int padding;
 	int markerOffset;
 
 	public ListData(ListType type,
-			Boolean tight,
+			boolean tight,
 			char bulletChar,
-			Integer start,
-			Character delimiter,
+			int start,
+			char delimiter,
 			int padding,
 			int markerOffset) {
 		this.type = type;
@@ -7,15 +7,22 @@ package net.arnx.commonmark4j.impl;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
 
+import net.arnx.commonmark4j.CMarkLimitException;
 import net.arnx.commonmark4j.CMarkNode;
 import net.arnx.commonmark4j.CMarkNodeType;
 
 public class Node implements CMarkNode {
-	private static boolean isContainer(Node node) {
-		switch (node._type) {
+	static boolean isContainer(CMarkNodeType type) {
+		switch (type) {
 		case DOCUMENT:
 		case BLOCK_QUOTE:
 		case LIST:
@@ -38,49 +45,368 @@ public class Node implements CMarkNode {
 	Node _lastChild;
 	Node _prev;
 	Node _next;
-	int[][] _sourcepos;
-	boolean _lastLineBlank;
-	boolean _open;
-	String _string_content;
-	String _literal;
-	ListData _listData;
-	String _info;
-	String _destination;
-	String _title;
-	boolean _isFenced;
-	char _fenceChar;
-	int _fenceLength;
-	int _fenceOffset;
-	int _level;
-	int _htmlBlockType;
+
+	// Emphasis, strong emphasis and line breaks need nothing more than
+	// the links above.  The node kinds with more data are subclasses,
+	// so that the many inline nodes of a document stay small.
+
+	// Blocks: state for the block parser, and source positions.
+	static class BlockNode extends Node {
+		int _startLine;
+		int _startColumn;
+		int _endLine;
+		int _endColumn;
+		boolean _lastLineBlank;
+		boolean _open = true;
+
+		BlockNode(CMarkNodeType nodeType, int startLine, int startColumn) {
+			super(nodeType);
+			this._startLine = startLine;
+			this._startColumn = startColumn;
+		}
+
+		@Override
+		public int[][] sourcepos() {
+			return new int[][] {{_startLine, _startColumn}, {_endLine, _endColumn}};
+		}
+
+		@Override
+		int sourcepos(int i) {
+			switch (i) {
+			case 0: return _startLine;
+			case 1: return _startColumn;
+			case 2: return _endLine;
+			default: return _endColumn;
+			}
+		}
+	}
+
+	// Lists and list items.
+	static final class ListNode extends BlockNode {
+		ListData _listData;
+
+		ListNode(CMarkNodeType nodeType, int startLine, int startColumn) {
+			super(nodeType, startLine, startColumn);
+		}
+
+		@Override
+		public ListType listType() {
+			return this._listData.type;
+		}
+
+		@Override
+		public void listType(ListType t) {
+			this._listData.type = t;
+		}
+
+		@Override
+		public Boolean listTight() {
+			return this._listData.tight;
+		}
+
+		@Override
+		public void listTight(Boolean t) {
+			if (t == null) {
+				throw new IllegalArgumentException("tight must not be null");
+			}
+			this._listData.tight = t;
+		}
+
+		@Override
+		public Integer listStart() {
+			return this._listData.start;
+		}
+
+		@Override
+		public void listStart(Integer n) {
+			if (n == null) {
+				throw new IllegalArgumentException("start must not be null");
+			}
+			this._listData.start = n;
+		}
+
+		@Override
+		public Character listDelimiter() {
+			return this._listData.delimiter;
+		}
+
+		@Override
+		public void listDelimiter(Character delim) {
+			if (delim == null) {
+				throw new IllegalArgumentException("delimiter must not be null");
+			}
+			this._listData.delimiter = delim;
+		}
+	}
+
+	// Code blocks and HTML blocks.
+	static final class CodeBlockNode extends BlockNode {
+		String _literal;
+		String _info;
+		boolean _isFenced;
+		char _fenceChar;
+		int _fenceLength;
+		int _fenceOffset = -1;
+		int _htmlBlockType;
+
+		CodeBlockNode(CMarkNodeType nodeType, int startLine, int startColumn) {
+			super(nodeType, startLine, startColumn);
+		}
+
+		@Override
+		public String literal() {
+			return _literal;
+		}
+
+		@Override
+		public void literal(String s) {
+			this._literal = s;
+		}
+
+		@Override
+		public String info() {
+			return _info;
+		}
+
+		@Override
+		public void info(String s) {
+			this._info = s;
+		}
+	}
+
+	// Paragraphs and headers: blocks with inline content.
+	static final class ParagraphNode extends BlockNode {
+		String _string_content;
+		// set while the inlines are left for later (see Parser.Options.lazy)
+		volatile LazyInlines _lazyInlines;
+		int _level = -1;
+
+		ParagraphNode(CMarkNodeType nodeType, int startLine, int startColumn) {
+			super(nodeType, startLine, startColumn);
+		}
+
+		// Returns this block if its inlines are parsed, or else a copy of
+		// it with them parsed, leaving this block as it is.
+		ParagraphNode parsed() throws CMarkLimitException {
+			LazyInlines lazyInlines = this._lazyInlines;
+			if (lazyInlines == null) {
+				return this;
+			}
+			synchronized (lazyInlines) {
+				if (this._lazyInlines == null) {
+					return this;
+				}
+				ParagraphNode copy = new ParagraphNode(this._type, this._startLine, this._startColumn);
+				copy._string_content = this._string_content;
+				lazyInlines.newParser().parse(copy);
+				return copy;
+			}
+		}
+
+		// Parse the inline content that the parser left for later.  The
+		// inlines are parsed into a copy and moved here only once that
+		// succeeds, so a block that exceeds a limit stays unparsed.
+		void parseInlines() {
+			LazyInlines lazyInlines = this._lazyInlines;
+			if (lazyInlines == null) {
+				return;
+			}
+			synchronized (lazyInlines) {
+				if (this._lazyInlines == null) {
+					return;
+				}
+				ParagraphNode copy;
+				try {
+					copy = parsed();
+				} catch (CMarkLimitException e) {
+					throw new UncheckedIOException(e);
+				}
+				for (Node child = copy._firstChild; child != null; child = child._next) {
+					child._parent = this;
+				}
+				this._firstChild = copy._firstChild;
+				this._lastChild = copy._lastChild;
+				this._string_content = null;
+				this._lazyInlines = null;
+			}
+		}
+
+		@Override
+		public Node firstChild() {
+			if (_lazyInlines != null) {
+				parseInlines();
+			}
+			return _firstChild;
+		}
+
+		@Override
+		public Node lastChild() {
+			if (_lazyInlines != null) {
+				parseInlines();
+			}
+			return _lastChild;
+		}
+
+		@Override
+		public void appendChild(Node child) {
+			if (_lazyInlines != null) {
+				parseInlines();
+			}
+			super.appendChild(child);
+		}
+
+		@Override
+		public void prependChild(Node child) {
+			if (_lazyInlines != null) {
+				parseInlines();
+			}
+			super.prependChild(child);
+		}
+
+		@Override
+		public int level() {
+			return _level;
+		}
+
+		@Override
+		public void level(int s) {
+			this._level = s;
+		}
+	}
+
+	// Text, code spans and raw HTML.  The literal is often a Slice of
+	// the inline content, made into a String only when asked for.
+	static final class TextNode extends Node {
+		CharSequence _literal;
+
+		TextNode(CMarkNodeType nodeType, CharSequence literal) {
+			super(nodeType);
+			this._literal = literal;
+		}
+
+		@Override
+		public String literal() {
+			return (_literal != null) ? _literal.toString() : null;
+		}
+
+		@Override
+		CharSequence literalChars() {
+			return _literal;
+		}
+
+		@Override
+		public void literal(String s) {
+			this._literal = s;
+		}
+	}
+
+	// Links and images.
+	static final class LinkNode extends Node {
+		String _destination;
+		String _title;
+
+		LinkNode(CMarkNodeType nodeType) {
+			super(nodeType);
+		}
+
+		@Override
+		public String destination() {
+			return _destination;
+		}
+
+		@Override
+		public void destination(String s) {
+			this._destination = s;
+		}
+
+		@Override
+		public String title() {
+			return _title;
+		}
+
+		@Override
+		public void title(String s) {
+			this._title = s;
+		}
+	}
 
 	public static class Event {
 		public boolean entering;
 		public Node node;
 	}
 
+	// Steps through the tree with a NodeCursor, and returns a new Event
+	// for each step.  current and entering are where the next step starts,
+	// and may be changed like resumeAt.
 	public static class NodeWalker {
 		public Node current;
 		public Node root;
 		public boolean entering = true;
+		private final NodeCursor cursor;
 
 		public NodeWalker(Node root) {
 			this.current = root;
 			this.root = root;
+			this.cursor = new NodeCursor(root);
 		}
 
 		public Event next() {
+			NodeCursor cursor = this.cursor;
+			cursor.root = this.root;
+			cursor.resumeAt(this.current, this.entering);
+			if (!cursor.next()) {
+				return null;
+			}
+			this.current = cursor.current;
+			this.entering = cursor.entering;
+
+			Event next = new Event();
+			next.entering = cursor.entering();
+			next.node = cursor.node();
+			return next;
+		}
+
+		public void resumeAt(Node node, boolean entering) {
+			this.current = node;
+			this.entering = entering;
+		}
+	}
+
+	// Walks the tree without an Event per step:
+	//
+	//   NodeCursor cursor = root.cursor();
+	//   while (cursor.next()) {
+	//       ... cursor.node(), cursor.entering() ...
+	//   }
+	//
+	// The node may be valid only until the next call of next(); use a
+	// NodeWalker to keep nodes from the walk.
+	public static class NodeCursor {
+		private Node current;
+		private Node root;
+		private boolean entering = true;
+		private Node node;
+		private boolean nodeEntering;
+
+		public NodeCursor(Node root) {
+			this.current = root;
+			this.root = root;
+		}
+
+		// Move to the next step.  Returns false when the walk is over.
+		public boolean next() {
 			Node cur = this.current;
 			boolean entering = this.entering;
 
 			if (cur == null) {
-				return null;
+				this.node = null;
+				return false;
 			}
 
-			boolean container = isContainer(cur);
+			boolean container = isContainer(cur._type);
 
 			if (entering && container) {
-				if (cur._firstChild != null) {
+				if (cur.firstChild() != null) {
 					this.current = cur._firstChild;
 					this.entering = true;
 				} else {
@@ -100,10 +426,29 @@ public class Node implements CMarkNode {
 				this.entering = true;
 			}
 
-			Event next = new Event();
-			next.entering = entering;
-			next.node = cur;
-			return next;
+			this.node = cur;
+			this.nodeEntering = entering;
+			return true;
+		}
+
+		// The node of this step.  A cursor over a frozen or compact
+		// document returns the same view moved to each node, so it must
+		// not be kept past the next call of next().
+		public Node node() {
+			return this.node;
+		}
+
+		public boolean entering() {
+			return this.nodeEntering;
+		}
+
+		// When entering a container, go from it straight to leaving it
+		// on the next step, without visiting its children.
+		public void skipChildren() {
+			if (this.nodeEntering && isContainer(this.node._type)) {
+				this.current = this.node;
+				this.entering = false;
+			}
 		}
 
 		public void resumeAt(Node node, boolean entering) {
@@ -112,31 +457,219 @@ public class Node implements CMarkNode {
 		}
 	}
 
-	public Node(CMarkNodeType nodeType, int[][] sourcepos) {
+	// Splits a subtree between siblings.  A spliterator covers an optional
+	// head node on its own, then the whole subtrees of the siblings from
+	// 'from' up to 'to'.  A range of one subtree is split by making its
+	// root the head and its children the range.  Sizes are counted when
+	// first needed, by one walk of the range, which also parses any lazy
+	// inlines in the thread that asks.
+	static final class NodeSpliterator implements Spliterator<CMarkNode> {
+		private Node head;
+		private Node from;
+		private Node to;
+		// subtree sizes of the siblings, from index for 'from' to end
+		private long[] sizes;
+		private int index;
+		private int end;
+		// the subtree being walked, and the next node in it
+		private Node subtree;
+		private Node current;
+		private long size = -1L;
+
+		NodeSpliterator(Node head, Node from, Node to) {
+			this.head = head;
+			this.from = from;
+			this.to = to;
+		}
+
+		private static Node next(Node node, Node subtree) {
+			if (node.firstChild() != null) {
+				return node._firstChild;
+			}
+			while (node != subtree) {
+				if (node._next != null) {
+					return node._next;
+				}
+				node = node._parent;
+			}
+			return null;
+		}
+
+		private static long count(Node node, Node subtree) {
+			long n = 0L;
+			for (; node != null; node = next(node, subtree)) {
+				n++;
+			}
+			return n;
+		}
+
+		private void countSizes() {
+			int n = 0;
+			for (Node sibling = from; sibling != to; sibling = sibling._next) {
+				n++;
+			}
+			this.sizes = new long[n];
+			this.index = 0;
+			this.end = n;
+			n = 0;
+			for (Node sibling = from; sibling != to; sibling = sibling._next) {
+				this.sizes[n++] = count(sibling, sibling);
+			}
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super CMarkNode> action) {
+			Node node;
+			if (this.head != null) {
+				node = this.head;
+				this.head = null;
+			} else {
+				if (this.current == null) {
+					if (this.from == this.to) {
+						return false;
+					}
+					this.subtree = this.from;
+					this.current = this.from;
+					this.from = this.from._next;
+					this.index++;
+				}
+				node = this.current;
+				this.current = next(node, this.subtree);
+			}
+			if (this.size > 0) {
+				this.size--;
+			}
+			action.accept(node);
+			return true;
+		}
+
+		@Override
+		public Spliterator<CMarkNode> trySplit() {
+			if (this.current != null) {
+				return null;
+			}
+			while (this.head == null && this.from != this.to && this.from._next == this.to &&
+					this.from.firstChild() != null) {
+				this.head = this.from;
+				this.from = this.from._firstChild;
+				this.to = null;
+				this.sizes = null;
+			}
+			if (this.from == this.to) {
+				return null;
+			}
+			if (this.from._next == this.to) {
+				if (this.head == null) {
+					return null;
+				}
+				NodeSpliterator prefix = new NodeSpliterator(this.head, null, null);
+				prefix.size = 1L;
+				this.head = null;
+				if (this.size > 0) {
+					this.size--;
+				}
+				return prefix;
+			}
+
+			if (this.sizes == null) {
+				this.countSizes();
+			}
+			long total = 0L;
+			for (int i = this.index; i < this.end; i++) {
+				total += this.sizes[i];
+			}
+			int k = this.index;
+			long half = 0L;
+			Node mid = this.from;
+			do {
+				half += this.sizes[k++];
+				mid = mid._next;
+			} while (k < this.end - 1 && half + this.sizes[k] <= total / 2);
+
+			NodeSpliterator prefix = new NodeSpliterator(this.head, this.from, mid);
+			prefix.sizes = this.sizes;
+			prefix.index = this.index;
+			prefix.end = k;
+			prefix.size = (this.head != null ? 1L : 0L) + half;
+			this.head = null;
+			this.from = mid;
+			this.index = k;
+			this.size = total - half;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			if (this.size < 0) {
+				if (this.sizes == null) {
+					this.countSizes();
+				}
+				long n = (this.head != null ? 1L : 0L) +
+						(this.current != null ? count(this.current, this.subtree) : 0L);
+				for (int i = this.index; i < this.end; i++) {
+					n += this.sizes[i];
+				}
+				this.size = n;
+			}
+			return this.size;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | DISTINCT | NONNULL | SIZED | SUBSIZED;
+		}
+	}
+
+	Node(CMarkNodeType nodeType) {
 		this._type = nodeType;
-		this._parent = null;
-		this._firstChild = null;
-		this._lastChild = null;
-		this._prev = null;
-		this._next = null;
-		this._sourcepos = sourcepos;
-		this._lastLineBlank = false;
-		this._open = true;
-		this._string_content = null;
-		this._literal = null;
-		this._listData = null;
-		this._info = null;
-		this._destination = null;
-		this._title = null;
-		this._isFenced = false;
-		this._fenceChar = '\0';
-		this._fenceLength = 0;
-		this._fenceOffset = -1;
-		this._level = -1;
+	}
+
+	// Create a node of the class for its type.  Blocks start at the given
+	// line and column; inline nodes have no source position.
+	public static Node create(CMarkNodeType nodeType, int startLine, int startColumn) {
+		switch (nodeType) {
+		case DOCUMENT:
+		case BLOCK_QUOTE:
+		case HORIZONTAL_RULE:
+			return new BlockNode(nodeType, startLine, startColumn);
+		case LIST:
+		case ITEM:
+			return new ListNode(nodeType, startLine, startColumn);
+		case CODE_BLOCK:
+		case HTML_BLOCK:
+			return new CodeBlockNode(nodeType, startLine, startColumn);
+		case PARAGRAPH:
+		case HEADER:
+			return new ParagraphNode(nodeType, startLine, startColumn);
+		case TEXT:
+		case CODE:
+		case HTML:
+			return new TextNode(nodeType, null);
+		case LINK:
+		case IMAGE:
+			return new LinkNode(nodeType);
+		default:
+			return new Node(nodeType);
+		}
+	}
+
+	// Create a node of the class for its type, as the removed constructor
+	// Node(CMarkNodeType, int[][]) did: blocks take their start and end
+	// from sourcepos, which may be null; inline nodes have none.
+	public static Node create(CMarkNodeType nodeType, int[][] sourcepos) {
+		if (sourcepos == null) {
+			return create(nodeType, 0, 0);
+		}
+		Node node = create(nodeType, sourcepos[0][0], sourcepos[0][1]);
+		if (node instanceof BlockNode) {
+			((BlockNode)node)._endLine = sourcepos[1][0];
+			((BlockNode)node)._endColumn = sourcepos[1][1];
+		}
+		return node;
 	}
 
 	public boolean isContainer() {
-		return isContainer(this);
+		return isContainer(this._type);
 	}
 
 	@Override
@@ -169,81 +702,101 @@ public class Node implements CMarkNode {
 		return _parent;
 	}
 
+	// The accessors below are overridden by the node classes that have
+	// the data; other nodes have none to get, and cannot take any.
+
 	@Override
 	public int[][] sourcepos() {
-		return _sourcepos;
+		return null;
+	}
+
+	// One number of sourcepos() without making the arrays: 0 and 1 for
+	// the start line and column, 2 and 3 for the end.  Returns -1 for a
+	// node without source positions.
+	int sourcepos(int i) {
+		return -1;
 	}
 
 	public String literal() {
-		return _literal;
+		return null;
+	}
+
+	// The literal as it is kept, which may be a Slice; renderers write
+	// it from there instead of asking for a String.
+	CharSequence literalChars() {
+		return literal();
 	}
 
 	public void literal(String s) {
-		this._literal = s;
+		throw unsupported("literal");
 	}
 
 	public String destination() {
-		return _destination;
+		return null;
 	}
 
 	public void destination(String s) {
-		this._destination = s;
+		throw unsupported("destination");
 	}
 
 	public String title() {
-		return _title;
+		return null;
 	}
 
 	public void title(String s) {
-		this._title = s;
+		throw unsupported("title");
 	}
 
 	public String info() {
-		return _info;
+		return null;
 	}
 
 	public void info(String s) {
-		this._info = s;
+		throw unsupported("info");
 	}
 
 	public int level() {
-		return _level;
+		return -1;
 	}
 
 	public void level(int s) {
-		this._level = s;
+		throw unsupported("level");
 	}
 
 	public ListType listType() {
-		return this._listData.type;
+		return null;
 	}
 
 	public void listType(ListType t) {
-		this._listData.type = t;
+		throw unsupported("listType");
 	}
 
 	public Boolean listTight() {
-		return this._listData.tight;
+		return null;
 	}
 
 	public void listTight(Boolean t) {
-		this._listData.tight = t;
+		throw unsupported("listTight");
 	}
 
 	public Integer listStart() {
-		return this._listData.start;
+		return null;
 	}
 
 	public void listStart(Integer n) {
-		this._listData.start = n;
+		throw unsupported("listStart");
 	}
 
 	public Character listDelimiter() {
-		return this._listData.delimiter;
+		return null;
 	}
 
 	public void listDelimiter(Character delim) {
-		this._listData.delimiter = delim;
+		throw unsupported("listDelimiter");
+	}
+
+	private UnsupportedOperationException unsupported(String name) {
+		return new UnsupportedOperationException(name + " is not supported by " + _type);
 	}
 
 	public void appendChild(Node child) {
@@ -316,11 +869,76 @@ public class Node implements CMarkNode {
 		}
 	}
 
+	// Returns a read-only copy of this node and its descendants, which
+	// may be shared between threads (see CompactDocument).  Lazy inlines
+	// are parsed for it.  The root of a frozen document returns itself.
+	public Node freeze() {
+		try {
+			return new CompactDocument(this).root();
+		} catch (CMarkLimitException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// For a frozen node, returns the same node in a copy of its document
+	// where edit has been given node, a mutable node holding the data of
+	// the node, to change it: its literal, destination, title, info,
+	// level or list data.  The copy shares everything else with this
+	// document, and children added to the given node are ignored.  Any
+	// other node is frozen first, and returns the root of the copy; node
+	// must then be this node or one of its descendants.
+	public Node derive(Node node, Consumer<? super Node> edit) {
+		// nodes are numbered in document order once frozen
+		int i = 0;
+		NodeCursor cursor = cursor();
+		while (cursor.next() && cursor.node() != node) {
+			if (cursor.entering()) {
+				i++;
+			}
+		}
+		if (cursor.node() == null) {
+			throw new IllegalArgumentException("node is not in this tree");
+		}
+		CompactDocument doc = ((CompactDocument.NodeView)freeze()).document();
+		return doc.root().derive(doc.new NodeView(i), edit);
+	}
+
+	// The headers, links and images in this node and its descendants,
+	// in document order.  A document parsed with Parser.Options.index
+	// answers from the lists it kept while parsing, which do not follow
+	// later changes to the tree; other nodes look through the tree.
+	public List<Node> headers() {
+		return find(CMarkNodeType.HEADER);
+	}
+
+	public List<Node> links() {
+		return find(CMarkNodeType.LINK);
+	}
+
+	public List<Node> images() {
+		return find(CMarkNodeType.IMAGE);
+	}
+
+	List<Node> find(CMarkNodeType type) {
+		List<Node> result = new ArrayList<>();
+		NodeCursor cursor = cursor();
+		while (cursor.next()) {
+			if (cursor.entering() && cursor.node().type() == type) {
+				result.add(cursor.node());
+			}
+		}
+		return Collections.unmodifiableList(result);
+	}
+
 	public NodeWalker walker() {
 		NodeWalker walker = new NodeWalker(this);
 		return walker;
 	}
 
+	public NodeCursor cursor() {
+		return new NodeCursor(this);
+	}
+
 	@Override
 	public Iterator<CMarkNode> iterator() {
 		return new Iterator<CMarkNode>() {
@@ -332,7 +950,7 @@ public class Node implements CMarkNode {
 				if (!available) {
 					if (current == null) {
 						// no handle
-					} else if (current._firstChild != null) {
+					} else if (current.firstChild() != null) {
 						current = current._firstChild;
 					} else {
 						boolean find = false;
@@ -371,6 +989,11 @@ public class Node implements CMarkNode {
 		};
 	}
 
+	@Override
+	public Spliterator<CMarkNode> spliterator() {
+		return new NodeSpliterator(null, this, this._next);
+	}
+
 	@Override
 	public String toString() {
 		StringWriter writer = new StringWriter();
@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.arnx.commonmark4j.CMarkNodeType;
+
+// The headers, links and images of a document in document order, kept
+// as the parsers create them (see Parser.Options.index).
+final class NodeIndex {
+	final List<Node> headers = new ArrayList<>();
+	final List<Node> links = new ArrayList<>();
+	final List<Node> images = new ArrayList<>();
+	// Links and images are added when they are closed, after any inside
+	// them, so each is kept with a number given when it was opened, for
+	// finish to put them in that order.
+	private int[] linkOrders = new int[16];
+	private int[] imageOrders = new int[16];
+	private int opened;
+
+	List<Node> list(CMarkNodeType type) {
+		switch (type) {
+		case HEADER:
+			return this.headers;
+		case LINK:
+			return this.links;
+		case IMAGE:
+			return this.images;
+		default:
+			return null;
+		}
+	}
+
+	// Returns the number for a link or image being opened.
+	int open() {
+		return this.opened++;
+	}
+
+	// Add a link or image opened with the number order.
+	void add(Node node, int order) {
+		List<Node> list = this.list(node.type());
+		if (node.type() == CMarkNodeType.LINK) {
+			this.linkOrders = put(this.linkOrders, list.size(), order);
+		} else {
+			this.imageOrders = put(this.imageOrders, list.size(), order);
+		}
+		list.add(node);
+	}
+
+	// Add a header, or a link that is opened and closed at once.
+	void add(Node node) {
+		if (node.type() == CMarkNodeType.HEADER) {
+			this.headers.add(node);
+		} else {
+			this.add(node, this.open());
+		}
+	}
+
+	private static int[] put(int[] orders, int i, int order) {
+		if (i == orders.length) {
+			orders = Arrays.copyOf(orders, i * 2);
+		}
+		orders[i] = order;
+		return orders;
+	}
+
+	// Put the links and images in the order they were opened in, once
+	// the document is parsed.
+	void finish() {
+		sort(this.links, this.linkOrders);
+		sort(this.images, this.imageOrders);
+	}
+
+	private static void sort(List<Node> list, int[] orders) {
+		int size = list.size();
+		boolean sorted = true;
+		for (int i = 1; i < size && sorted; i++) {
+			sorted = orders[i - 1] < orders[i];
+		}
+		if (sorted) {
+			return;
+		}
+		long[] keys = new long[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = ((long)orders[i] << 32) | i;
+		}
+		Arrays.sort(keys);
+		Node[] nodes = list.toArray(new Node[size]);
+		for (int i = 0; i < size; i++) {
+			int from = (int)keys[i];
+			list.set(i, nodes[from]);
+			orders[i] = (int)(keys[i] >>> 32);
+		}
+	}
+
+	// Drop the headers that are no longer in doc, which are the last
+	// ones when the parser drops the blocks after an excerpt.
+	void trim(Node doc) {
+		while (!this.headers.isEmpty() && root(this.headers.get(this.headers.size() - 1)) != doc) {
+			this.headers.remove(this.headers.size() - 1);
+		}
+	}
+
+	private static Node root(Node node) {
+		while (node._parent != null) {
+			node = node._parent;
+		}
+		return node;
+	}
+
+	List<Node> find(CMarkNodeType type) {
+		return Collections.unmodifiableList(this.list(type));
+	}
+}
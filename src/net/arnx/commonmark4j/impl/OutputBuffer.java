@@ -0,0 +1,83 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+// A buffer in front of the Appendable a renderer writes to, so that the
+// many small appends of a render, each of which takes a lock on a
+// Writer or a StringBuffer, become a few large ones.  Not thread-safe.
+final class OutputBuffer implements Appendable {
+	private final Appendable out;
+	private final char[] buf = new char[8192];
+	private int pos;
+
+	OutputBuffer(Appendable out) {
+		this.out = out;
+	}
+
+	// Returns true if appending to out is cheap already, so that a
+	// buffer would only copy the output once more.
+	static boolean isBuffered(Appendable out) {
+		return out instanceof StringBuilder || out instanceof Utf8Output || out instanceof OutputBuffer;
+	}
+
+	@Override
+	public OutputBuffer append(CharSequence s) throws IOException {
+		if (s == null) {
+			s = "null";
+		}
+		return append(s, 0, s.length());
+	}
+
+	@Override
+	public OutputBuffer append(CharSequence s, int start, int end) throws IOException {
+		if (s == null) {
+			s = "null";
+		}
+		int len = end - start;
+		if (len > this.buf.length - this.pos) {
+			flush();
+			if (len >= this.buf.length) {
+				this.out.append(s, start, end);
+				return this;
+			}
+		}
+		if (s instanceof String) {
+			((String)s).getChars(start, end, this.buf, this.pos);
+		} else {
+			for (int i = start; i < end; i++) {
+				this.buf[this.pos + i - start] = s.charAt(i);
+			}
+		}
+		this.pos += len;
+		return this;
+	}
+
+	@Override
+	public OutputBuffer append(char c) throws IOException {
+		if (this.pos == this.buf.length) {
+			flush();
+		}
+		this.buf[this.pos++] = c;
+		return this;
+	}
+
+	// Pass on what is buffered.  A Writer given it is not flushed.
+	void flush() throws IOException {
+		if (this.pos == 0) {
+			return;
+		}
+		if (this.out instanceof Writer) {
+			((Writer)this.out).write(this.buf, 0, this.pos);
+		} else {
+			this.out.append(CharBuffer.wrap(this.buf, 0, this.pos));
+		}
+		this.pos = 0;
+	}
+}
@@ -9,20 +9,29 @@ import static net.arnx.commonmark4j.impl.Common.*;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import net.arnx.commonmark4j.CMarkLimitException;
 import net.arnx.commonmark4j.CMarkNodeType;
 import net.arnx.commonmark4j.CMarkParser;
-import net.arnx.commonmark4j.impl.Node.Event;
-import net.arnx.commonmark4j.impl.Node.NodeWalker;
+import net.arnx.commonmark4j.impl.Node.BlockNode;
+import net.arnx.commonmark4j.impl.Node.CodeBlockNode;
+import net.arnx.commonmark4j.impl.Node.ListNode;
+import net.arnx.commonmark4j.impl.Node.NodeCursor;
+import net.arnx.commonmark4j.impl.Node.ParagraphNode;
 
 public class Parser implements CMarkParser {
 	static final int CODE_INDENT = 4;
 
+	// Larger buffers for block content are not kept for the next block.
+	static final int MAX_RETAINED_CONTENT = 8192;
+
 	static final char C_NEWLINE = 10;
 	static final char C_GREATERTHAN = 62;
 	static final char C_LESSTHAN = 60;
@@ -49,8 +58,6 @@ public class Parser implements CMarkParser {
 			Pattern.compile("\\]\\]>")
 	};
 
-	static Pattern reHrule = Pattern.compile("^(?:(?:\\* *){3,}|(?:_ *){3,}|(?:- *){3,}) *$");
-
 	static Pattern reMaybeSpecial = Pattern.compile("^[#`~*+_=<>0-9-]");
 
 	static Pattern reNonSpace = Pattern.compile("[^ \\t\\f\\v\\r\\n]");
@@ -68,11 +75,44 @@ public class Parser implements CMarkParser {
 	static Pattern reSetextHeaderLine = Pattern.compile("^(?:=+|-+) *$");
 
 	// Returns true if string contains only space characters.
-	static boolean isBlank(String s) {
+	static boolean isBlank(CharSequence s) {
 		return !reNonSpace.matcher(s).find();
 	}
 
-	static int peek(String ln, int pos) {
+	// If re matches ln at pos, return the match; otherwise return null.
+	// Unlike matching ln.substring(pos), this does not copy the line.
+	// The pattern must be anchored with ^, which matches at pos; it is
+	// only tried there rather than at every later position.
+	static Matcher matchAt(Pattern re, CharSequence ln, int pos) {
+		Matcher m = re.matcher(ln).region(pos, ln.length());
+		return m.lookingAt() ? m : null;
+	}
+
+	// Returns true if ln has a horizontal rule at pos: three or more
+	// matching -, _, or * characters, each followed optionally by spaces.
+	// (A regex for this recurses once per character.)
+	static boolean isHrule(CharSequence ln, int pos) {
+		int len = ln.length();
+		if (pos >= len) {
+			return false;
+		}
+		char c = ln.charAt(pos);
+		if (c != '*' && c != '_' && c != '-') {
+			return false;
+		}
+		int count = 0;
+		for (int i = pos; i < len; i++) {
+			char ch = ln.charAt(i);
+			if (ch == c) {
+				count++;
+			} else if (ch != ' ') {
+				return false;
+			}
+		}
+		return count >= 3;
+	}
+
+	static int peek(CharSequence ln, int pos) {
 		if (pos < ln.length()) {
 			return ln.charAt(pos);
 		} else {
@@ -86,14 +126,14 @@ public class Parser implements CMarkParser {
 
 	// Returns true if block ends with a blank line, descending if needed
 	// into lists and sublists.
-	static boolean endsWithBlankLine(Node block) {
+	static boolean endsWithBlankLine(BlockNode block) {
 		while (block != null) {
 			if (block._lastLineBlank) {
 				return true;
 			}
 			CMarkNodeType t = block.type();
 			if (t == CMarkNodeType.LIST || t == CMarkNodeType.ITEM) {
-				block = block._lastChild;
+				block = (BlockNode)block._lastChild;
 			} else {
 				break;
 			}
@@ -105,52 +145,127 @@ public class Parser implements CMarkParser {
 	// document to the parent of the highest list, and finalizing
 	// all the lists.  (This is used to implement the "two blank lines
 	// break of of all lists" feature.)
-	void breakOutOfLists(Node block) {
-		Node b = block;
-		Node last_list = null;
-		do {
+	void breakOutOfLists(BlockNode block) {
+		BlockNode last_list = null;
+		for (int i = 0; i < this.openDepth; i++) {
+			BlockNode b = this.openBlocks[i];
 			if (b.type() == CMarkNodeType.LIST) {
 				last_list = b;
+				break;
+			}
+			if (b == block) {
+				break;
 			}
-			b = b._parent;
-		} while (b != null);
+		}
 
 		if (last_list != null) {
 			while (block != last_list) {
 				this.finalize(block, this.lineNumber);
-				block = block._parent;
+				block = (BlockNode)block._parent;
 			}
 			this.finalize(last_list, this.lineNumber);
-			this.tip = last_list._parent;
+			this.tip = (BlockNode)last_list._parent;
 		}
 	}
 
 	// Add a line to the block at the tip.  We assume the tip
 	// can accept lines -- that check should be done before calling this.
+	// Only the tip can be an open block that accepts lines, so its lines
+	// are collected in this.content until it is finalized.
 	void addLine() {
-		this.tip._string_content += this.currentLine.substring(this.offset) + "\n";
+		CharSequence ln = this.currentLine;
+		StringBuilder sb = this.content;
+		// make room for the newline too, so that a long line does not
+		// double the buffer just to append it
+		sb.ensureCapacity(sb.length() + ln.length() - this.offset + 1);
+		sb.append(ln, this.offset, ln.length()).append('\n');
+		this.contentLines++;
+		this.textLength += ln.length() - this.offset;
+	}
+
+	// Return the lines collected for the tip, dropping trailing
+	// spaces and newlines if trim is true, and start collecting anew.
+	String takeContent(boolean trim) {
+		StringBuilder sb = this.content;
+		if (trim) {
+			int end = sb.length();
+			while (end > 0 && (sb.charAt(end - 1) == ' ' || sb.charAt(end - 1) == '\n')) {
+				end--;
+			}
+			sb.setLength(end);
+		}
+		String result = sb.toString();
+		if (sb.capacity() > MAX_RETAINED_CONTENT) {
+			this.content = new StringBuilder();
+		} else {
+			sb.setLength(0);
+		}
+		this.contentLines = 0;
+		return result;
+	}
+
+	// Return the length of content once trailing blank lines, that is
+	// a final run of (\n *)+, are removed, or -1 if there are none.
+	static int trailingBlankLinesStart(CharSequence content) {
+		int end = content.length();
+		int start = -1;
+		while (true) {
+			int i = end;
+			while (i > 0 && content.charAt(i - 1) == ' ') {
+				i--;
+			}
+			if (i > 0 && content.charAt(i - 1) == '\n') {
+				end = start = i - 1;
+			} else {
+				return start;
+			}
+		}
 	}
 
 	// Add block of type tag as a child of the tip.  If the tip can't
 	// accept children, close and finalize it and try its parent,
 	// and so on til we find a block that can accept children.
-	Node addChild(CMarkNodeType tag, int offset) {
+	BlockNode addChild(CMarkNodeType tag, int offset) {
 		while (!blocks.get(this.tip.type()).canContain(tag)) {
 			this.finalize(this.tip, this.lineNumber - 1);
 		}
 
 		int column_number = offset + 1; // offset 0 = column 1
-		Node newBlock = new Node(tag, new int[][] {{this.lineNumber, column_number}, {0, 0}});
-		newBlock._string_content = "";
+		BlockNode newBlock = (BlockNode)Node.create(tag, this.lineNumber, column_number);
+		this.content.setLength(0);
+		this.contentLines = 0;
 		this.tip.appendChild(newBlock);
 		this.tip = newBlock;
+		this.pushOpenBlock(newBlock);
+		this.limits.nodes++;
+		if (this.nodeIndex != null && tag == CMarkNodeType.HEADER) {
+			this.nodeIndex.add(newBlock);
+		}
 		return newBlock;
 	}
 
+	// Push a newly opened block onto the stack of open blocks.
+	void pushOpenBlock(BlockNode block) {
+		if (this.openDepth == this.openBlocks.length) {
+			this.openBlocks = Arrays.copyOf(this.openBlocks, this.openDepth * 2);
+			this.openNesting = Arrays.copyOf(this.openNesting, this.openDepth * 2);
+		}
+		CMarkNodeType t = block.type();
+		this.openNesting[this.openDepth] = (this.openDepth > 0 ? this.openNesting[this.openDepth - 1] : 0) +
+				(t == CMarkNodeType.BLOCK_QUOTE || t == CMarkNodeType.ITEM ? 1 : 0);
+		this.openBlocks[this.openDepth++] = block;
+	}
+
+	// Returns true if a block quote or list item may be started at the
+	// tip, i.e. fewer than maxNesting of them are open around it.
+	// Deeper markers are left as literal text.
+	boolean canNest() {
+		return this.openNesting[this.openDepth - 1] < this.options.maxNesting;
+	}
+
 	// Parse a list marker and return data on the marker (type,
 	// start, delimiter, bullet character, padding) or null.
-	static ListData parseListMarker(String ln, int offset, int indent) {
-		String rest = ln.substring(offset);
+	static ListData parseListMarker(CharSequence ln, int offset, int indent) {
 		Matcher match;
 		int spaces_after_marker;
 		ListData data = new ListData(null,
@@ -160,26 +275,27 @@ public class Parser implements CMarkParser {
 				'\0',
 				-1,
 				indent);
-		if ((match = reBulletListMarker.matcher(rest)).find()) {
-			spaces_after_marker = match.group(1).length();
+		if ((match = matchAt(reBulletListMarker, ln, offset)) != null) {
+			spaces_after_marker = match.end(1) - match.start(1);
 			data.type = ListType.BULLET;
-			data.bulletChar = match.group().charAt(0);
+			data.bulletChar = ln.charAt(match.start());
 
-		} else if ((match = reOrderedListMarker.matcher(rest)).find()) {
-			spaces_after_marker = match.group(3).length();
+		} else if ((match = matchAt(reOrderedListMarker, ln, offset)) != null) {
+			spaces_after_marker = match.end(3) - match.start(3);
 			data.type = ListType.ORDERED;
 			data.start = Integer.parseInt(match.group(1));
-			data.delimiter = match.group(2).charAt(0);
+			data.delimiter = ln.charAt(match.start(2));
 		} else {
 			return null;
 		}
-		boolean blank_item = match.group().length() == rest.length();
+		int match_length = match.end() - match.start();
+		boolean blank_item = match.end() == ln.length();
 		if (spaces_after_marker >= 5 ||
 				spaces_after_marker < 1 ||
 				blank_item) {
-			data.padding = match.group().length() - spaces_after_marker + 1;
+			data.padding = match_length - spaces_after_marker + 1;
 		} else {
-			data.padding = match.group().length();
+			data.padding = match_length;
 		}
 		return data;
 	}
@@ -198,7 +314,7 @@ public class Parser implements CMarkParser {
 		if (!this.allClosed) {
 			// finalize any blocks not matched
 			while (this.oldtip != this.lastMatchedContainer) {
-				Node parent = this.oldtip._parent;
+				BlockNode parent = (BlockNode)this.oldtip._parent;
 				this.finalize(this.oldtip, this.lineNumber - 1);
 				this.oldtip = parent;
 			}
@@ -215,11 +331,11 @@ public class Parser implements CMarkParser {
 		{
 			put(CMarkNodeType.DOCUMENT, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
+				public int continue_(Parser parser, BlockNode container) {
 					return 0;
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
+				public void finalize(Parser parser, BlockNode block) {
 				}
 				@Override
 				public boolean canContain(CMarkNodeType t) {
@@ -232,30 +348,31 @@ public class Parser implements CMarkParser {
 			});
 			put(CMarkNodeType.LIST, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
+				public int continue_(Parser parser, BlockNode container) {
 					return 0;
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
-					Node item = block._firstChild;
+				public void finalize(Parser parser, BlockNode block) {
+					ListData data = ((ListNode)block)._listData;
+					BlockNode item = (BlockNode)block._firstChild;
 					while (item != null) {
 						// check for non-final list item ending with blank line:
-						if (endsWithBlankLine(item) && item._next != null) {
-							block._listData.tight = false;
+						if (item._next != null && endsWithBlankLine(item)) {
+							data.tight = false;
 							break;
 						}
 						// recurse into children of list item, to see if there are
 						// spaces between any of them:
-						Node subitem = item._firstChild;
+						BlockNode subitem = (BlockNode)item._firstChild;
 						while (subitem != null) {
-							if (endsWithBlankLine(subitem) &&
-									(item._next != null || subitem._next != null)) {
-								block._listData.tight = false;
+							if ((item._next != null || subitem._next != null) &&
+									endsWithBlankLine(subitem)) {
+								data.tight = false;
 								break;
 							}
-							subitem = subitem._next;
+							subitem = (BlockNode)subitem._next;
 						}
-						item = item._next;
+						item = (BlockNode)item._next;
 					}
 				}
 				@Override
@@ -269,8 +386,8 @@ public class Parser implements CMarkParser {
 			});
 			put(CMarkNodeType.BLOCK_QUOTE, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
-					String ln = parser.currentLine;
+				public int continue_(Parser parser, BlockNode container) {
+					CharSequence ln = parser.currentLine;
 					if (!parser.indented &&
 							peek(ln, parser.nextNonspace) == C_GREATERTHAN) {
 						parser.advanceNextNonspace();
@@ -284,7 +401,7 @@ public class Parser implements CMarkParser {
 					return 0;
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
+				public void finalize(Parser parser, BlockNode block) {
 				}
 				@Override
 				public boolean canContain(CMarkNodeType t) {
@@ -298,21 +415,22 @@ public class Parser implements CMarkParser {
 			});
 			put(CMarkNodeType.ITEM, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
+				public int continue_(Parser parser, BlockNode container) {
+					ListData data = ((ListNode)container)._listData;
 					if (parser.blank) {
 						parser.advanceNextNonspace();
 					} else if (parser.indent >=
-							container._listData.markerOffset +
-							container._listData.padding) {
-						parser.advanceOffset(container._listData.markerOffset +
-								container._listData.padding, true);
+							data.markerOffset +
+							data.padding) {
+						parser.advanceOffset(data.markerOffset +
+								data.padding, true);
 					} else {
 						return 1;
 					}
 					return 0;
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
+				public void finalize(Parser parser, BlockNode block) {
 				}
 				@Override
 				public boolean canContain(CMarkNodeType t) {
@@ -325,12 +443,12 @@ public class Parser implements CMarkParser {
 			});
 			put(CMarkNodeType.HEADER, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
+				public int continue_(Parser parser, BlockNode container) {
 					// a header can never container > 1 line, so fail to match:
 					return 1;
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
+				public void finalize(Parser parser, BlockNode block) {
 
 				}
 				@Override
@@ -344,12 +462,12 @@ public class Parser implements CMarkParser {
 			});
 			put(CMarkNodeType.HORIZONTAL_RULE, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
+				public int continue_(Parser parser, BlockNode container) {
 					// a header can never container > 1 line, so fail to match:
 					return 1;
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
+				public void finalize(Parser parser, BlockNode block) {
 				}
 				@Override
 				public boolean canContain(CMarkNodeType t) {
@@ -362,16 +480,17 @@ public class Parser implements CMarkParser {
 			});
 			put(CMarkNodeType.CODE_BLOCK, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
-					String ln = parser.currentLine;
+				public int continue_(Parser parser, BlockNode node) {
+					CodeBlockNode container = (CodeBlockNode)node;
+					CharSequence ln = parser.currentLine;
 					int indent = parser.indent;
 					if (container._isFenced) { // fenced
 						Matcher m = null;
 						if (indent <= 3 && parser.nextNonspace < ln.length()
 								&& ln.charAt(parser.nextNonspace) == container._fenceChar
 								&& parser.nextNonspace < ln.length()
-								&& (m = reClosingCodeFence.matcher(ln.substring(parser.nextNonspace))).find()
-								&& m.group(0).length() >= container._fenceLength) {
+								&& (m = matchAt(reClosingCodeFence, ln, parser.nextNonspace)) != null
+								&& m.end() - m.start() >= container._fenceLength) {
 							// closing fence - we're at end of line, so we can return
 							parser.finalize(container, parser.lineNumber);
 							return 2;
@@ -395,19 +514,23 @@ public class Parser implements CMarkParser {
 					return 0;
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
+				public void finalize(Parser parser, BlockNode node) {
+					CodeBlockNode block = (CodeBlockNode)node;
+					StringBuilder content = parser.content;
 					if (block._isFenced) { // fenced
 						// first line becomes info string
-						String content = block._string_content;
-						int newlinePos = content.indexOf('\n');
+						int newlinePos = content.indexOf("\n");
 						String firstLine = content.substring(0, newlinePos);
-						String rest = content.substring(newlinePos + 1);
+						content.delete(0, newlinePos + 1);
 						block.info(Common.unescapeString(firstLine.trim()));
-						block._literal = rest;
 					} else { // indented
-						block._literal = block._string_content.replaceFirst("(\\n *)+$", "\n");
+						int end = trailingBlankLinesStart(content);
+						if (end != -1) {
+							content.setLength(end);
+							content.append('\n');
+						}
 					}
-					block._string_content = null; // allow GC
+					block._literal = parser.takeContent(false);
 				}
 				@Override
 				public boolean canContain(CMarkNodeType t) {
@@ -420,15 +543,21 @@ public class Parser implements CMarkParser {
 			});
 			put(CMarkNodeType.HTML_BLOCK, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
+				public int continue_(Parser parser, BlockNode container) {
+					int htmlBlockType = ((CodeBlockNode)container)._htmlBlockType;
 					return ((parser.blank &&
-							(container._htmlBlockType == 6 ||
-							container._htmlBlockType == 7)) ? 1 : 0);
+							(htmlBlockType == 6 ||
+							htmlBlockType == 7)) ? 1 : 0);
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
-					block._literal = block._string_content.replaceFirst("(\\n *)+$", "");
-					block._string_content = null; // allow GC
+				public void finalize(Parser parser, BlockNode node) {
+					CodeBlockNode block = (CodeBlockNode)node;
+					StringBuilder content = parser.content;
+					int end = trailingBlankLinesStart(content);
+					if (end != -1) {
+						content.setLength(end);
+					}
+					block._literal = parser.takeContent(false);
 				}
 				@Override
 				public boolean canContain(CMarkNodeType t) {
@@ -441,22 +570,28 @@ public class Parser implements CMarkParser {
 			});
 			put(CMarkNodeType.PARAGRAPH, new Block() {
 				@Override
-				public int continue_(Parser parser, Node container) {
+				public int continue_(Parser parser, BlockNode container) {
 					return (parser.blank ? 1 : 0);
 				}
 				@Override
-				public void finalize(Parser parser, Node block) {
+				public void finalize(Parser parser, BlockNode node) {
+					ParagraphNode block = (ParagraphNode)node;
 					int pos;
+					int start = 0;
 					boolean hasReferenceDefs = false;
+					// the inline parser trims the content anyway; trimming
+					// the buffer here saves it a copy
+					String content = parser.takeContent(true);
 
 					// try parsing the beginning as link reference definitions:
-					while (peek(block._string_content, 0) == C_OPEN_BRACKET &&
+					while (peek(content, start) == C_OPEN_BRACKET &&
 							(pos =
-							parser.inlineParser.parseReference(block._string_content,
+							parser.inlineParser.parseReference(content, start,
 									parser.refmap)) != 0) {
-						block._string_content = block._string_content.substring(pos);
+						start += pos;
 						hasReferenceDefs = true;
 					}
+					block._string_content = (start == 0) ? content : content.substring(start);
 					if (hasReferenceDefs && isBlank(block._string_content)) {
 						block.unlink();
 					}
@@ -482,13 +617,16 @@ public class Parser implements CMarkParser {
 			(parser, container) -> {
 				if (!parser.indented &&
 						peek(parser.currentLine, parser.nextNonspace) == C_GREATERTHAN) {
+					parser.closeUnmatchedBlocks();
+					if (!parser.canNest()) {
+						return 0;
+					}
 					parser.advanceNextNonspace();
 					parser.advanceOffset(1, false);
 					// optional following space
 					if (peek(parser.currentLine, parser.offset) == C_SPACE) {
 						parser.advanceOffset(1, false);
 					}
-					parser.closeUnmatchedBlocks();
 					parser.addChild(CMarkNodeType.BLOCK_QUOTE, parser.nextNonspace);
 					return 1;
 				} else {
@@ -501,16 +639,42 @@ public class Parser implements CMarkParser {
 				Matcher match;
 				if (!parser.indented &&
 						parser.nextNonspace < parser.currentLine.length() &&
-						(match = reATXHeaderMarker.matcher(parser.currentLine.substring(parser.nextNonspace))).find()) {
+						(match = matchAt(reATXHeaderMarker, parser.currentLine, parser.nextNonspace)) != null) {
+					CharSequence ln = parser.currentLine;
+					int level = 0;
+					while (match.start() + level < ln.length() && ln.charAt(match.start() + level) == '#') {
+						level++;
+					}
 					parser.advanceNextNonspace();
-					parser.advanceOffset(match.group().length(), false);
+					parser.advanceOffset(match.end() - match.start(), false);
 					parser.closeUnmatchedBlocks();
-					Node container2 = parser.addChild(CMarkNodeType.HEADER, parser.nextNonspace);
-					container2.level(match.group().trim().length()); // number of #s
-					// remove trailing ###s:
-					container2._string_content =
-							parser.currentLine.substring(parser.offset).replaceFirst("^ *#+ *$", "").replaceFirst(" +#+ *$", "");
-					parser.advanceOffset(parser.currentLine.length() - parser.offset, false);
+					ParagraphNode container2 = (ParagraphNode)parser.addChild(CMarkNodeType.HEADER, parser.nextNonspace);
+					container2.level(level); // number of #s
+					// remove trailing ###s, and the spaces before them:
+					int end = ln.length();
+					while (end > parser.offset && ln.charAt(end - 1) == ' ') {
+						end--;
+					}
+					int hashes = end;
+					while (hashes > parser.offset && ln.charAt(hashes - 1) == '#') {
+						hashes--;
+					}
+					if (hashes < end) {
+						int i = hashes;
+						while (i > parser.offset && ln.charAt(i - 1) == ' ') {
+							i--;
+						}
+						if (i == parser.offset || i < hashes) {
+							end = i;
+						} else {
+							end = ln.length();
+						}
+					} else {
+						end = ln.length();
+					}
+					container2._string_content = ln.subSequence(parser.offset, end).toString();
+					parser.textLength += container2._string_content.length();
+					parser.advanceOffset(ln.length() - parser.offset, false);
 					return 2;
 				} else {
 					return 0;
@@ -522,13 +686,13 @@ public class Parser implements CMarkParser {
 				Matcher match;
 				if (!parser.indented &&
 						parser.nextNonspace < parser.currentLine.length() &&
-						(match = reCodeFence.matcher(parser.currentLine.substring(parser.nextNonspace))).find()) {
-					int fenceLength = match.group().length();
+						(match = matchAt(reCodeFence, parser.currentLine, parser.nextNonspace)) != null) {
+					int fenceLength = match.end() - match.start();
 					parser.closeUnmatchedBlocks();
-					Node container2 = parser.addChild(CMarkNodeType.CODE_BLOCK, parser.nextNonspace);
+					CodeBlockNode container2 = (CodeBlockNode)parser.addChild(CMarkNodeType.CODE_BLOCK, parser.nextNonspace);
 					container2._isFenced = true;
 					container2._fenceLength = fenceLength;
-					container2._fenceChar = match.group().charAt(0);
+					container2._fenceChar = parser.currentLine.charAt(match.start());
 					container2._fenceOffset = parser.indent;
 					parser.advanceNextNonspace();
 					parser.advanceOffset(fenceLength, false);
@@ -542,17 +706,16 @@ public class Parser implements CMarkParser {
 			(parser, container) -> {
 				if (!parser.indented &&
 						peek(parser.currentLine, parser.nextNonspace) == C_LESSTHAN) {
-					String s = parser.currentLine.substring(parser.nextNonspace);
 					int blockType;
 
 					for (blockType = 1; blockType <= 7; blockType++) {
-						if (reHtmlBlockOpen[blockType].matcher(s).find() &&
+						if (matchAt(reHtmlBlockOpen[blockType], parser.currentLine, parser.nextNonspace) != null &&
 								(blockType < 7 ||
 										container.type() != CMarkNodeType.PARAGRAPH)) {
 							parser.closeUnmatchedBlocks();
 							// We don't adjust parser.offset;
 							// spaces are part of the HTML block:
-							Node b = parser.addChild(CMarkNodeType.HTML_BLOCK,
+							CodeBlockNode b = (CodeBlockNode)parser.addChild(CMarkNodeType.HTML_BLOCK,
 									parser.offset);
 							b._htmlBlockType = blockType;
 							return 2;
@@ -569,17 +732,21 @@ public class Parser implements CMarkParser {
 				Matcher match;
 				if (!parser.indented &&
 						container.type() == CMarkNodeType.PARAGRAPH &&
-						(container._string_content.indexOf('\n') ==
-						container._string_content.length() - 1) &&
+						parser.contentLines == 1 &&
 						parser.nextNonspace < parser.currentLine.length() &&
-						((match = reSetextHeaderLine.matcher(parser.currentLine.substring(parser.nextNonspace))).find())) {
+						((match = matchAt(reSetextHeaderLine, parser.currentLine, parser.nextNonspace)) != null)) {
 					parser.closeUnmatchedBlocks();
-					Node header = new Node(CMarkNodeType.HEADER, container.sourcepos());
-					header.level(match.group().charAt(0) == '=' ? 1 : 2);
-					header._string_content = container._string_content;
+					ParagraphNode header = (ParagraphNode)Node.create(CMarkNodeType.HEADER,
+							container._startLine, container._startColumn);
+					header.level(parser.currentLine.charAt(match.start()) == '=' ? 1 : 2);
+					header._string_content = parser.takeContent(true);
 					container.insertAfter(header);
 					container.unlink();
+					if (parser.nodeIndex != null) {
+						parser.nodeIndex.add(header);
+					}
 					parser.tip = header;
+					parser.openBlocks[parser.openDepth - 1] = header;
 					parser.advanceOffset(parser.currentLine.length() - parser.offset, false);
 					return 2;
 				} else {
@@ -591,7 +758,7 @@ public class Parser implements CMarkParser {
 			(parser, container) -> {
 				if (!parser.indented &&
 						parser.nextNonspace < parser.currentLine.length() &&
-						reHrule.matcher(parser.currentLine.substring(parser.nextNonspace)).find()) {
+						isHrule(parser.currentLine, parser.nextNonspace)) {
 					parser.closeUnmatchedBlocks();
 					parser.addChild(CMarkNodeType.HORIZONTAL_RULE, parser.nextNonspace);
 					parser.advanceOffset(parser.currentLine.length() - parser.offset, false);
@@ -611,6 +778,9 @@ public class Parser implements CMarkParser {
 					if (parser.indented && parser.tip.type() != CMarkNodeType.LIST) {
 						return 0;
 					}
+					if (!parser.canNest()) {
+						return 0;
+					}
 					parser.advanceNextNonspace();
 					// recalculate data.padding, taking into account tabs:
 					i = parser.column;
@@ -619,14 +789,14 @@ public class Parser implements CMarkParser {
 
 					// add the list if needed
 					if (parser.tip.type() != CMarkNodeType.LIST ||
-							!(listsMatch(container._listData, data))) {
+							!(listsMatch(((ListNode)container)._listData, data))) {
 						container = parser.addChild(CMarkNodeType.LIST, parser.nextNonspace);
-						container._listData = data;
+						((ListNode)container)._listData = data;
 					}
 
 					// add the list item
 					container = parser.addChild(CMarkNodeType.ITEM, parser.nextNonspace);
-					container._listData = data;
+					((ListNode)container)._listData = data;
 					return 1;
 				} else {
 					return 0;
@@ -652,7 +822,7 @@ public class Parser implements CMarkParser {
 	void advanceOffset(int count, boolean columns) {
 		int i = 0;
 		int cols = 0;
-		String currentLine = this.currentLine;
+		CharSequence currentLine = this.currentLine;
 		while (columns ? (cols < count) : (i < count)) {
 			if (this.offset + i < currentLine.length() && currentLine.charAt(this.offset + i) == '\t') {
 				cols += (4 - (this.column % 4));
@@ -671,7 +841,7 @@ public class Parser implements CMarkParser {
 	}
 
 	void findNextNonspace() {
-		String currentLine = this.currentLine;
+		CharSequence currentLine = this.currentLine;
 		int i = this.offset;
 		int cols = this.column;
 		char c = '\0';
@@ -699,18 +869,20 @@ public class Parser implements CMarkParser {
 	// Analyze a line of text and update the document appropriately.
 	// We parse markdown text by calling this on each line of input,
 	// then finalizing the document.
-	void incorporateLine(String ln) {
+	void incorporateLine(StringBuilder ln) {
 		boolean all_matched = true;
 		CMarkNodeType t;
 
-		Node container = this.doc;
+		BlockNode container = this.doc;
 		this.oldtip = this.tip;
 		this.offset = 0;
 		this.lineNumber += 1;
 
 		// replace NUL characters for security
-		if (ln.indexOf('\u0000') != -1) {
-			ln = ln.replaceAll("\\0", "\uFFFD");
+		for (int i = 0; i < ln.length(); i++) {
+			if (ln.charAt(i) == '\u0000') {
+				ln.setCharAt(i, '\uFFFD');
+			}
 		}
 
 		this.currentLine = ln;
@@ -718,9 +890,8 @@ public class Parser implements CMarkParser {
 		// For each containing block, try to parse the associated line start.
 		// Bail out on failure: container will point to the last matching block.
 		// Set all_matched to false if not all containers match.
-		Node lastChild;
-		while ((lastChild = container._lastChild) != null && lastChild._open) {
-			container = lastChild;
+		for (int depth = 1; depth < this.openDepth; depth++) {
+			container = this.openBlocks[depth];
 
 			this.findNextNonspace();
 
@@ -737,7 +908,7 @@ public class Parser implements CMarkParser {
 				throw new IllegalStateException("continue returned illegal value, must be 0, 1, or 2");
 			}
 			if (!all_matched) {
-				container = container._parent; // back up to last matching block
+				container = (BlockNode)container._parent; // back up to last matching block
 				break;
 			}
 		}
@@ -762,7 +933,7 @@ public class Parser implements CMarkParser {
 
 			// this is a little performance optimization:
 			if (!this.indented &&
-					!(this.nextNonspace < ln.length() && reMaybeSpecial.matcher(ln.substring(this.nextNonspace)).find())) {
+					!(this.nextNonspace < ln.length() && matchAt(reMaybeSpecial, ln, this.nextNonspace) != null)) {
 				this.advanceNextNonspace();
 				break;
 			}
@@ -801,8 +972,8 @@ public class Parser implements CMarkParser {
 
 			// finalize any blocks not matched
 			this.closeUnmatchedBlocks();
-			if (this.blank && container.lastChild() != null) {
-				container.lastChild()._lastLineBlank = true;
+			if (this.blank && container._lastChild != null) {
+				((BlockNode)container._lastChild)._lastLineBlank = true;
 			}
 
 			t = container.type();
@@ -813,25 +984,26 @@ public class Parser implements CMarkParser {
 			// on an empty list item, or if we just closed a fenced block.
 			boolean lastLineBlank = this.blank &&
 					!(t == CMarkNodeType.BLOCK_QUOTE ||
-					(t == CMarkNodeType.CODE_BLOCK && container._isFenced) ||
+					(t == CMarkNodeType.CODE_BLOCK && ((CodeBlockNode)container)._isFenced) ||
 					(t == CMarkNodeType.ITEM &&
 					container._firstChild == null &&
-					container.sourcepos()[0][0] == this.lineNumber));
+					container._startLine == this.lineNumber));
 
 			// propagate lastLineBlank up through parents:
-			Node cont = container;
+			BlockNode cont = container;
 			while (cont != null) {
 				cont._lastLineBlank = lastLineBlank;
-				cont = cont._parent;
+				cont = (BlockNode)cont._parent;
 			}
 
 			if (blocks.get(t).acceptsLines()) {
 				this.addLine();
 				// if HtmlBlock, check for end condition
-				if (t == CMarkNodeType.HTML_BLOCK &&
-						container._htmlBlockType >= 1 &&
-						container._htmlBlockType <= 5 &&
-						reHtmlBlockClose[container._htmlBlockType].matcher(this.currentLine.substring(this.offset)).find()) {
+				int htmlBlockType = t == CMarkNodeType.HTML_BLOCK ? ((CodeBlockNode)container)._htmlBlockType : 0;
+				if (htmlBlockType >= 1 &&
+						htmlBlockType <= 5 &&
+						reHtmlBlockClose[htmlBlockType].matcher(this.currentLine)
+								.region(this.offset, this.currentLine.length()).find()) {
 					this.finalize(container, this.lineNumber);
 				}
 
@@ -850,41 +1022,75 @@ public class Parser implements CMarkParser {
 	// or 'loose' status of a list, and parsing the beginnings
 	// of paragraphs for reference definitions.  Reset the tip to the
 	// parent of the closed block.
-	void finalize(Node block, int lineNumber) {
-		Node above = block._parent;
+	void finalize(BlockNode block, int lineNumber) {
+		BlockNode above = (BlockNode)block._parent;
+		boolean wasOpen = block._open;
 		block._open = false;
-		block.sourcepos()[1] = new int[] { lineNumber, this.lastLineLength };
+		block._endLine = lineNumber;
+		block._endColumn = this.lastLineLength;
 
 		blocks.get(block.type()).finalize(this, block);
 
+		if (wasOpen && above == this.doc && block._parent == this.doc) {
+			this.completedBlocks++;
+		}
+
+		if (this.lazyInlines != null &&
+				(block.type() == CMarkNodeType.PARAGRAPH || block.type() == CMarkNodeType.HEADER)) {
+			((ParagraphNode)block)._lazyInlines = this.lazyInlines;
+		}
+
+		// pop the block and anything still above it; a block that is
+		// not on the stack was already dropped by breakOutOfLists.
+		int i = this.openDepth - 1;
+		while (i > 0 && this.openBlocks[i] != block) {
+			i--;
+		}
+		if (this.openBlocks[i] == block) {
+			while (this.openDepth > i) {
+				this.openBlocks[--this.openDepth] = null;
+			}
+		}
+
 		this.tip = above;
 	}
 
 	// Walk through a block & children recursively, parsing string content
 	// into inline content where appropriate.
-	void processInlines(Node block) {
-		Node node; Event event; CMarkNodeType t;
-		NodeWalker walker = block.walker();
+	void processInlines(Node block) throws CMarkLimitException {
+		Node node; CMarkNodeType t;
+		NodeCursor cursor = block.cursor();
 		this.inlineParser.refmap = this.refmap;
 		this.inlineParser.options = this.options;
-		while ((event = walker.next()) != null) {
-			node = event.node;
+		this.inlineParser.limits = this.limits;
+		while (cursor.next()) {
+			node = cursor.node();
 			t = node.type();
-			if (!event.entering && (t == CMarkNodeType.PARAGRAPH || t == CMarkNodeType.HEADER)) {
-				this.inlineParser.parse(node);
+			if (!cursor.entering() && (t == CMarkNodeType.PARAGRAPH || t == CMarkNodeType.HEADER)) {
+				this.inlineParser.parse((ParagraphNode)node);
 			}
 		}
 	}
 
-	private static class Document extends Node {
+	private static class Document extends BlockNode {
+		NodeIndex _index;
+
 		public Document() {
-			super(CMarkNodeType.DOCUMENT, new int[][] {{1, 1}, {0, 0}});
+			super(CMarkNodeType.DOCUMENT, 1, 1);
+		}
+
+		@Override
+		List<Node> find(CMarkNodeType type) {
+			return (_index != null) ? _index.find(type) : super.find(type);
 		}
 	}
 
 	public Node parse(BufferedReader reader) throws IOException {
-		this.doc = new Document();
+		Document doc = new Document();
+		this.doc = doc;
 		this.tip = this.doc;
+		this.openDepth = 0;
+		this.pushOpenBlock(this.doc);
 		this.refmap = new HashMap<>();
 		this.lineNumber = 0;
 		this.lastLineLength = 0;
@@ -892,29 +1098,157 @@ public class Parser implements CMarkParser {
 		this.column = 0;
 		this.lastMatchedContainer = this.doc;
 		this.currentLine = "";
+		this.content = new StringBuilder();
+		this.contentLines = 0;
+		this.completedBlocks = 0;
+		this.textLength = 0L;
+		this.limits = new Limits();
+		this.limits.maxInput = this.options.maxInputLength;
+		this.limits.maxNodes = this.options.maxNodes;
+		this.limits.deadline = this.options.deadline != 0L ? this.options.deadline : Limits.deadline(this.options.timeout);
+		// an index needs the inlines now, while a compact document is
+		// looked through instead
+		boolean lazy = (this.options.lazy && !this.options.index) || this.options.compact;
+		this.nodeIndex = (this.options.index && !this.options.compact) ? new NodeIndex() : null;
+		doc._index = this.nodeIndex;
+		this.inlineParser.nodeIndex = this.nodeIndex;
+		if (lazy) {
+			// each document gets its own, as its nodes may be parsed
+			// long after the next document
+			this.lazyInlines = new LazyInlines(this.options, this.refmap, this.limits);
+		} else {
+			this.lazyInlines = null;
+		}
 		long time = 0L;
 		if (this.options.time) { time = System.currentTimeMillis(); }
 
-		String line = null;
-		int len = 0;
-		while ((line = reader.readLine()) != null) {
-			this.incorporateLine(line);
-			len++;
-		}
+		int len = this.incorporateLines(reader);
 		while (this.tip != null) {
 			this.finalize(this.tip, len);
 		}
+		if (this.options.excerptBlocks > 0) {
+			// drop a block started on the line that completed the excerpt
+			Node b = this.doc._firstChild;
+			for (int i = 1; b != null && i < this.options.excerptBlocks; i++) {
+				b = b._next;
+			}
+			while (b != null && b._next != null) {
+				b._next.unlink();
+			}
+			if (this.nodeIndex != null) {
+				this.nodeIndex.trim(this.doc);
+			}
+		}
 		if (this.options.time) { System.out.println("block parsing: " + ((System.currentTimeMillis() - time) / 1000.0) + "s"); }
+		if (this.options.compact) {
+			// inlines are parsed block by block as they are copied
+			if (this.options.time) { time = System.currentTimeMillis(); }
+			Node root = new CompactDocument(this.doc).root();
+			if (this.options.time) { System.out.println("inline parsing and compaction: " + ((System.currentTimeMillis() - time) / 1000.0) + "s"); }
+			this.lazyInlines = null;
+			this.nodeIndex = null;
+			// let the tree go
+			this.doc = new Document();
+			this.tip = this.doc;
+			this.oldtip = this.doc;
+			this.lastMatchedContainer = this.doc;
+			return root;
+		}
+		if (lazy) {
+			// the timeout is for this call only
+			this.limits.deadline = 0L;
+			this.lazyInlines = null;
+			return this.doc;
+		}
 		if (this.options.time) { time = System.currentTimeMillis(); }
 		this.processInlines(this.doc);
 		if (this.options.time) { System.out.println("inline parsing: " + ((System.currentTimeMillis() - time) / 1000.0) + "s"); }
+		if (this.nodeIndex != null) {
+			this.nodeIndex.finish();
+		}
+		this.nodeIndex = null;
+		this.inlineParser.nodeIndex = null;
 		return this.doc;
 	}
 
-	Node doc = new Document();
-	Node tip = this.doc;
-	Node oldtip = this.doc;
-	String currentLine = "";
+	// Returns true once the excerpt asked for by options.excerptBlocks
+	// or options.excerptLength is complete, so that no more input is read.
+	boolean isExcerptComplete() {
+		return (this.options.excerptBlocks > 0 && this.completedBlocks >= this.options.excerptBlocks) ||
+				(this.options.excerptLength > 0 && this.textLength >= this.options.excerptLength);
+	}
+
+	// The characters a line may have before it reaches
+	// options.excerptLength.  A line adds no more text than its length.
+	long excerptBudget() {
+		return (this.options.excerptLength > 0) ? this.options.excerptLength - this.textLength : Long.MAX_VALUE;
+	}
+
+	// Split input into lines like BufferedReader.readLine, but into one
+	// reused buffer, so that a long line is not copied into a new String,
+	// and incorporate them.  Returns the number of lines.
+	int incorporateLines(BufferedReader reader) throws IOException {
+		StringBuilder line = new StringBuilder();
+		char[] buf = new char[8192];
+		boolean skipLF = false;
+		long budget = this.excerptBudget();
+		int len = 0;
+		int n;
+		read:
+		while ((n = reader.read(buf)) != -1) {
+			this.limits.input += n;
+			this.limits.check();
+			int start = 0;
+			for (int i = 0; i < n; i++) {
+				char c = buf[i];
+				if (skipLF) {
+					skipLF = false;
+					if (c == '\n') {
+						start = i + 1;
+						continue;
+					}
+				}
+				if (line.length() + (i - start) >= budget) {
+					// the excerpt is complete within this line, so end
+					// the line here and read no further
+					line.append(buf, start, i - start);
+					this.limits.check();
+					this.incorporateLine(line);
+					line.setLength(0);
+					len++;
+					break read;
+				}
+				if (c == '\n' || c == '\r') {
+					line.append(buf, start, i - start);
+					this.limits.check();
+					this.incorporateLine(line);
+					line.setLength(0);
+					len++;
+					if (this.isExcerptComplete()) {
+						break read;
+					}
+					budget = this.excerptBudget();
+					skipLF = (c == '\r');
+					start = i + 1;
+				}
+			}
+			line.append(buf, start, n - start);
+		}
+		if (line.length() > 0) {
+			this.limits.check();
+			this.incorporateLine(line);
+			len++;
+		}
+		this.currentLine = "";
+		return len;
+	}
+
+	BlockNode doc = new Document();
+	BlockNode tip = this.doc;
+	BlockNode oldtip = this.doc;
+	CharSequence currentLine = "";
+	StringBuilder content = new StringBuilder();
+	int contentLines = 0;
 	int lineNumber = 0;
 	int offset = 0;
 	int column = 0;
@@ -924,10 +1258,19 @@ public class Parser implements CMarkParser {
 	boolean indented = false;
 	boolean blank = false;
 	boolean allClosed = true;
-	Node lastMatchedContainer = this.doc;
+	BlockNode lastMatchedContainer = this.doc;
+	// The open blocks, from the document down to the deepest one.
+	BlockNode[] openBlocks = new BlockNode[16];
+	int[] openNesting = new int[16];
+	int openDepth = 0;
 	Map<String, Ref> refmap = new HashMap<>();
 	int lastLineLength = 0;
 	InlineParser inlineParser;
+	LazyInlines lazyInlines;
+	NodeIndex nodeIndex;
+	int completedBlocks = 0;
+	long textLength = 0L;
+	Limits limits = new Limits();
 	Options options;
 
 	public Parser() {
@@ -942,6 +1285,16 @@ public class Parser implements CMarkParser {
 	public static class Options {
 		boolean smart;
 		boolean time;
+		boolean lazy;
+		boolean compact;
+		boolean index;
+		int maxNesting = 100;
+		int excerptBlocks;
+		long excerptLength;
+		long maxInputLength = Limits.NONE;
+		long maxNodes = Limits.NONE;
+		long timeout;
+		long deadline;
 
 		public Options smart(boolean flag) {
 			smart = flag;
@@ -952,12 +1305,106 @@ public class Parser implements CMarkParser {
 			time = flag;
 			return this;
 		}
+
+		// parse the inlines of a paragraph or header only when its
+		// children are first accessed.  Blocks of one document are parsed
+		// one at a time, so the tree may be read from several threads,
+		// but a limit hit then is thrown as an UncheckedIOException from
+		// the accessor; freeze() parses everything up front instead.
+		public Options lazy(boolean flag) {
+			lazy = flag;
+			return this;
+		}
+
+		// Return a read-only document kept in a few arrays rather than
+		// one object per node, for large documents that are kept around.
+		// The nodes returned by navigation are new views each time, so
+		// compare them with equals.  Takes precedence over lazy.
+		public Options compact(boolean flag) {
+			compact = flag;
+			return this;
+		}
+
+		// Keep the headers, links and images of the document as they are
+		// parsed, for Node.headers(), links() and images() to return
+		// without looking through the tree.  Takes precedence over lazy,
+		// as inlines are parsed to find links, but not over compact.
+		public Options index(boolean flag) {
+			index = flag;
+			return this;
+		}
+
+		// Stop reading input once this many top-level blocks are
+		// complete, or 0 to read it all.  Reference definitions after
+		// that point are not read, so links to them do not resolve.
+		public Options excerptBlocks(int count) {
+			if (count < 0) {
+				throw new IllegalArgumentException("count must not be negative: " + count);
+			}
+			excerptBlocks = count;
+			return this;
+		}
+
+		// Stop reading input once the text in paragraphs, headers, and
+		// code and HTML blocks reaches this many characters, or 0 to read
+		// it all.  The line where that happens is cut there, as if it
+		// ended, so no more than this many characters of a line are read.
+		// The text is counted before inline parsing, so it includes inline
+		// markup, and markup cut in two is left as text.  As with
+		// excerptBlocks, later reference definitions do not resolve.
+		public Options excerptLength(long length) {
+			if (length < 0) {
+				throw new IllegalArgumentException("length must not be negative: " + length);
+			}
+			excerptLength = length;
+			return this;
+		}
+
+		public Options maxNesting(int depth) {
+			if (depth < 0) {
+				throw new IllegalArgumentException("depth must not be negative: " + depth);
+			}
+			maxNesting = depth;
+			return this;
+		}
+
+		public Options maxInputLength(long length) {
+			if (length < 0) {
+				throw new IllegalArgumentException("length must not be negative: " + length);
+			}
+			maxInputLength = length;
+			return this;
+		}
+
+		public Options maxNodes(long count) {
+			if (count < 0) {
+				throw new IllegalArgumentException("count must not be negative: " + count);
+			}
+			maxNodes = count;
+			return this;
+		}
+
+		// milliseconds a parse may take, or 0 for no limit
+		public Options timeout(long millis) {
+			if (millis < 0) {
+				throw new IllegalArgumentException("millis must not be negative: " + millis);
+			}
+			timeout = millis;
+			return this;
+		}
+
+		// an absolute System.nanoTime() deadline shared with a renderer;
+		// takes precedence over timeout
+		Options deadline(long nanos) {
+			deadline = nanos;
+			return this;
+		}
 	}
 
 	static interface Block {
-		public int continue_(Parser parser, Node container);
+		public int continue_(Parser parser, BlockNode container);
 
-		public void finalize(Parser parser, Node block);
+		public void finalize(Parser parser, BlockNode block);
 
 		public boolean canContain(CMarkNodeType t);
 
@@ -965,7 +1412,7 @@ public class Parser implements CMarkParser {
 	}
 
 	static interface BlockStart {
-		int process(Parser parser, Node container);
+		int process(Parser parser, BlockNode container);
 	}
 
 }
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+// A range of a string, kept as a literal instead of a copy of the range.
+// The string is the inline content of a paragraph or header, or the text
+// of a compact document, and stays alive as long as the slice does.
+final class Slice implements CharSequence {
+	final String source;
+	final int start;
+	final int end;
+
+	Slice(String source, int start, int end) {
+		this.source = source;
+		this.start = start;
+		this.end = end;
+	}
+
+	@Override
+	public int length() {
+		return end - start;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return source.charAt(start + index);
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return new Slice(source, this.start + start, this.start + end);
+	}
+
+	@Override
+	public String toString() {
+		return source.substring(start, end);
+	}
+}
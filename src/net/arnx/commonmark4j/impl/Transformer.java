@@ -20,6 +20,13 @@ public class Transformer implements CMarkTransformer {
 	private String softbreak = "\n";
 	private boolean sourcepos;
 	private boolean time;
+	private int maxNesting = 100;
+	private long maxInputLength = Limits.NONE;
+	private long maxNodes = Limits.NONE;
+	private long maxOutputLength = Limits.NONE;
+	private long timeout;
+	private int excerptBlocks;
+	private long excerptLength;
 
 	@Override
 	public CMarkTransformer format(String text) {
@@ -57,11 +64,81 @@ public class Transformer implements CMarkTransformer {
 		return this;
 	}
 
+	@Override
+	public CMarkTransformer maxNesting(int depth) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("depth must not be negative: " + depth);
+		}
+		maxNesting = depth;
+		return this;
+	}
+
+	@Override
+	public CMarkTransformer maxInputLength(long length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("length must not be negative: " + length);
+		}
+		maxInputLength = length;
+		return this;
+	}
+
+	@Override
+	public CMarkTransformer maxNodes(long count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("count must not be negative: " + count);
+		}
+		maxNodes = count;
+		return this;
+	}
+
+	@Override
+	public CMarkTransformer maxOutputLength(long length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("length must not be negative: " + length);
+		}
+		maxOutputLength = length;
+		return this;
+	}
+
+	@Override
+	public CMarkTransformer timeout(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("millis must not be negative: " + millis);
+		}
+		timeout = millis;
+		return this;
+	}
+
+	@Override
+	public CMarkTransformer excerptBlocks(int count) {
+		if (count < 0) {
+			throw new IllegalArgumentException("count must not be negative: " + count);
+		}
+		excerptBlocks = count;
+		return this;
+	}
+
+	@Override
+	public CMarkTransformer excerptLength(long length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("length must not be negative: " + length);
+		}
+		excerptLength = length;
+		return this;
+	}
+
 	@Override
 	public void transform(BufferedReader in, Appendable out) throws IOException {
+		long deadline = Limits.deadline(timeout);
 		CMarkParser parser = new Parser(new Parser.Options()
 				.smart(smart)
-				.time(time));
+				.time(time)
+				.maxNesting(maxNesting)
+				.maxInputLength(maxInputLength)
+				.maxNodes(maxNodes)
+				.excerptBlocks(excerptBlocks)
+				.excerptLength(excerptLength)
+				.deadline(deadline));
 		CMarkNode node = parser.parse(in);
 
 		CMarkRenderer renderer;
@@ -70,13 +147,17 @@ public class Transformer implements CMarkTransformer {
 					.time(time)
 					.safe(safe)
 					.sourcepos(sourcepos)
-					.softbreak(softbreak));
+					.softbreak(softbreak)
+					.maxOutputLength(maxOutputLength)
+					.deadline(deadline));
 		} else {
 			renderer = new HtmlRenderer(new HtmlRenderer.Options()
 					.time(time)
 					.safe(safe)
 					.sourcepos(sourcepos)
-					.softbreak(softbreak));
+					.softbreak(softbreak)
+					.maxOutputLength(maxOutputLength)
+					.deadline(deadline));
 		}
 
 		renderer.render(node, out);
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.arnx.commonmark4j.CMarkRenderer;
+
+// Compares the top-level blocks of two documents, for a preview that
+// patches what it shows instead of replacing all of it.  Each block is
+// reduced to a hash of its content, so blocks that are the same are
+// passed over by comparing two longs, and the rest become edits that
+// carry the rendering of the new block.  Source positions are not part
+// of the hash, so a block that only moved is not rendered again.
+// Frozen documents keep the hashes once made, so diffing one again, or
+// a copy made with derive, does not hash its blocks again.
+public final class TreeDiff {
+	public enum Operation {
+		INSERT,
+		DELETE,
+		REPLACE
+	}
+
+	// One change to the list of blocks.  Edits are to be applied in
+	// order, and index is the position of the block at the time, so
+	// counting the edits before it.  html is the rendering of the new
+	// block, or null for DELETE.
+	public static final class Edit {
+		public final Operation operation;
+		public final int index;
+		public final String html;
+
+		Edit(Operation operation, int index, String html) {
+			this.operation = operation;
+			this.index = index;
+			this.html = html;
+		}
+
+		@Override
+		public String toString() {
+			return operation + " " + index + ((html != null) ? " " + html : "");
+		}
+	}
+
+	// beyond this many cells, the unmatched middle is replaced as a whole
+	private static final long MAX_CELLS = 1L << 22;
+
+	private TreeDiff() {
+	}
+
+	// Returns the edits that turn the blocks of from into those of to,
+	// rendering new blocks with renderer.
+	public static List<Edit> diff(Node from, Node to, CMarkRenderer renderer) throws IOException {
+		List<Node> a = blocks(from);
+		List<Node> b = blocks(to);
+		long[] ha = hashes(a);
+		long[] hb = hashes(b);
+
+		// the same blocks at the start and at the end are common
+		int start = 0;
+		while (start < ha.length && start < hb.length && ha[start] == hb[start]) {
+			start++;
+		}
+		int endA = ha.length;
+		int endB = hb.length;
+		while (endA > start && endB > start && ha[endA - 1] == hb[endB - 1]) {
+			endA--;
+			endB--;
+		}
+
+		List<Edit> edits = new ArrayList<>();
+		int n = endA - start;
+		int m = endB - start;
+		if (n == 0 && m == 0) {
+			return Collections.emptyList();
+		} else if ((long)(n + 1) * (m + 1) > MAX_CELLS) {
+			for (int k = 0; k < Math.min(n, m); k++) {
+				edits.add(new Edit(Operation.REPLACE, start + k, render(b.get(start + k), renderer)));
+			}
+			for (int k = n; k < m; k++) {
+				edits.add(new Edit(Operation.INSERT, start + k, render(b.get(start + k), renderer)));
+			}
+			for (int k = m; k < n; k++) {
+				edits.add(new Edit(Operation.DELETE, start + m, null));
+			}
+			return edits;
+		}
+
+		// lengths of the longest common subsequences of the suffixes
+		int[][] lcs = new int[n + 1][m + 1];
+		for (int i = n - 1; i >= 0; i--) {
+			for (int j = m - 1; j >= 0; j--) {
+				lcs[i][j] = (ha[start + i] == hb[start + j]) ? lcs[i + 1][j + 1] + 1 : Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+			}
+		}
+
+		int i = 0;
+		int j = 0;
+		int index = start;
+		while (i < n || j < m) {
+			if (i < n && j < m && ha[start + i] == hb[start + j]) {
+				i++;
+				j++;
+				index++;
+			} else if (i < n && j < m && lcs[i + 1][j + 1] == lcs[i][j]) {
+				// neither block is in a longest match, so one takes the
+				// place of the other
+				edits.add(new Edit(Operation.REPLACE, index++, render(b.get(start + j), renderer)));
+				i++;
+				j++;
+			} else if (j == m || (i < n && lcs[i + 1][j] >= lcs[i][j + 1])) {
+				edits.add(new Edit(Operation.DELETE, index, null));
+				i++;
+			} else {
+				edits.add(new Edit(Operation.INSERT, index++, render(b.get(start + j), renderer)));
+				j++;
+			}
+		}
+		return edits;
+	}
+
+	private static List<Node> blocks(Node doc) {
+		List<Node> blocks = new ArrayList<>();
+		for (Node block = doc.firstChild(); block != null; block = block.next()) {
+			blocks.add(block);
+		}
+		return blocks;
+	}
+
+	private static String render(Node block, CMarkRenderer renderer) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		renderer.render(block, sb);
+		return sb.toString();
+	}
+
+	private static long[] hashes(List<Node> blocks) {
+		long[] hashes = new long[blocks.size()];
+		for (int i = 0; i < hashes.length; i++) {
+			hashes[i] = hash(blocks.get(i));
+		}
+		return hashes;
+	}
+
+	// A 64-bit hash of the kinds, data and shape of node and its
+	// descendants: the hash of the data of the node, with the hashes of
+	// its children mixed in.  A frozen node takes it from its document.
+	static long hash(Node node) {
+		if (node instanceof CompactDocument.NodeView) {
+			CompactDocument.NodeView view = (CompactDocument.NodeView)node;
+			return view.document().hash(view.index);
+		}
+		// hashes of the containers entered but not yet left
+		long[] open = new long[16];
+		int depth = 0;
+		long h = 0L;
+		Node.NodeCursor cursor = node.cursor();
+		while (cursor.next()) {
+			Node n = cursor.node();
+			if (cursor.entering() && n.isContainer()) {
+				if (depth == open.length) {
+					open = Arrays.copyOf(open, depth * 2);
+				}
+				open[depth++] = data(n);
+				continue;
+			}
+			h = cursor.entering() ? data(n) : open[--depth];
+			if (depth > 0) {
+				open[depth - 1] = mix(open[depth - 1], h);
+			}
+		}
+		return h;
+	}
+
+	// A 64-bit FNV-1a hash of the kind and data of node alone.
+	static long data(Node n) {
+		long h = 0xCBF29CE484222325L;
+		h = mix(h, n.type().ordinal());
+		h = mix(h, n.literalChars());
+		h = mix(h, n.destination());
+		h = mix(h, n.title());
+		h = mix(h, n.info());
+		h = mix(h, n.level());
+		h = mix(h, (n.listType() != null) ? n.listType().ordinal() : -1);
+		h = mix(h, (n.listTight() != null) ? (n.listTight() ? 1 : 0) : -1);
+		h = mix(h, (n.listStart() != null) ? n.listStart() : -1);
+		h = mix(h, (n.listDelimiter() != null) ? n.listDelimiter() : -1);
+		return h;
+	}
+
+	static long mix(long h, long value) {
+		return mix(mix(h, (int)value), (int)(value >>> 32));
+	}
+
+	private static long mix(long h, int value) {
+		for (int i = 0; i < 4; i++) {
+			h = (h ^ (value & 0xFF)) * 0x100000001B3L;
+			value >>>= 8;
+		}
+		return h;
+	}
+
+	private static long mix(long h, CharSequence s) {
+		if (s == null) {
+			return mix(h, -1);
+		}
+		h = mix(h, s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			h = (h ^ (c & 0xFF)) * 0x100000001B3L;
+			h = (h ^ (c >>> 8)) * 0x100000001B3L;
+		}
+		return h;
+	}
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2015, Hidekatsu Izuno <hidekatsu.izuno@gmail.com>
+ *
+ * This software is released under the 2 clause BSD License, see LICENSE.
+ */
+package net.arnx.commonmark4j.impl;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// An Appendable that encodes what renderers write as UTF-8 into a byte
+// buffer of its own, and writes the buffer to an output stream, a
+// channel or a byte buffer when it is full and on flush().  It takes the
+// place of an OutputStreamWriter and the buffers around it, and is not
+// thread-safe, as renderers need no locking.  A surrogate that is not
+// part of a pair is written as '?', as OutputStreamWriter does.
+public final class Utf8Output implements Appendable, Flushable {
+	private final OutputStream out;
+	private final WritableByteChannel channel;
+	private final ByteBuffer target;
+	private final byte[] buf = new byte[8192];
+	private int pos;
+	private char high; // a high surrogate waiting for its pair, or 0
+
+	public Utf8Output(OutputStream out) {
+		this(out, null, null);
+	}
+
+	public Utf8Output(WritableByteChannel channel) {
+		this(null, channel, null);
+	}
+
+	// Throws BufferOverflowException on flushing more than target has
+	// room for.
+	public Utf8Output(ByteBuffer target) {
+		this(null, null, target);
+	}
+
+	private Utf8Output(OutputStream out, WritableByteChannel channel, ByteBuffer target) {
+		this.out = out;
+		this.channel = channel;
+		this.target = target;
+	}
+
+	@Override
+	public Utf8Output append(CharSequence s) throws IOException {
+		if (s == null) {
+			s = "null";
+		}
+		return append(s, 0, s.length());
+	}
+
+	@Override
+	public Utf8Output append(CharSequence s, int start, int end) throws IOException {
+		if (s == null) {
+			s = "null";
+		}
+		byte[] buf = this.buf;
+		int i = start;
+		while (i < end) {
+			// copy ASCII as it is, as much of it as fits
+			int pos = this.pos;
+			if (this.high == 0) {
+				int limit = Math.min(end, i + buf.length - pos);
+				char c;
+				while (i < limit && (c = s.charAt(i)) < 0x80) {
+					buf[pos++] = (byte)c;
+					i++;
+				}
+				this.pos = pos;
+				if (pos == buf.length) {
+					flushBuffer();
+				}
+				if (i == end || i == limit) {
+					continue;
+				}
+			}
+			encode(s.charAt(i++));
+		}
+		return this;
+	}
+
+	@Override
+	public Utf8Output append(char c) throws IOException {
+		if (c < 0x80 && this.high == 0) {
+			if (this.pos == this.buf.length) {
+				flushBuffer();
+			}
+			this.buf[this.pos++] = (byte)c;
+		} else {
+			encode(c);
+		}
+		return this;
+	}
+
+	private void encode(char c) throws IOException {
+		if (this.buf.length - this.pos < 4) {
+			flushBuffer();
+		}
+		if (this.high != 0) {
+			char high = this.high;
+			this.high = 0;
+			if (Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				this.buf[this.pos++] = (byte)(0xF0 | (cp >> 18));
+				this.buf[this.pos++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+				this.buf[this.pos++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+				this.buf[this.pos++] = (byte)(0x80 | (cp & 0x3F));
+				return;
+			}
+			this.buf[this.pos++] = '?';
+			append(c);
+			return;
+		}
+		if (c < 0x80) {
+			this.buf[this.pos++] = (byte)c;
+		} else if (c < 0x800) {
+			this.buf[this.pos++] = (byte)(0xC0 | (c >> 6));
+			this.buf[this.pos++] = (byte)(0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c)) {
+			this.high = c;
+		} else if (Character.isLowSurrogate(c)) {
+			this.buf[this.pos++] = '?';
+		} else {
+			this.buf[this.pos++] = (byte)(0xE0 | (c >> 12));
+			this.buf[this.pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+			this.buf[this.pos++] = (byte)(0x80 | (c & 0x3F));
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (this.pos == 0) {
+			return;
+		}
+		if (this.out != null) {
+			this.out.write(this.buf, 0, this.pos);
+		} else if (this.channel != null) {
+			ByteBuffer bb = ByteBuffer.wrap(this.buf, 0, this.pos);
+			while (bb.hasRemaining()) {
+				this.channel.write(bb);
+			}
+		} else {
+			this.target.put(this.buf, 0, this.pos);
+		}
+		this.pos = 0;
+	}
+
+	// Write out what is buffered, with a high surrogate still waiting
+	// for its pair as '?', and flush the output stream.
+	@Override
+	public void flush() throws IOException {
+		if (this.high != 0) {
+			this.high = 0;
+			if (this.pos == this.buf.length) {
+				flushBuffer();
+			}
+			this.buf[this.pos++] = '?';
+		}
+		flushBuffer();
+		if (this.out != null) {
+			this.out.flush();
+		}
+	}
+}
@@ -11,15 +11,13 @@ import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
 
 import org.w3c.dom.Attr;
 
 import net.arnx.commonmark4j.CMarkNode;
 import net.arnx.commonmark4j.CMarkNodeType;
 import net.arnx.commonmark4j.CMarkRenderer;
-import net.arnx.commonmark4j.impl.Node.Event;
-import net.arnx.commonmark4j.impl.Node.NodeWalker;
+import net.arnx.commonmark4j.impl.Node.NodeCursor;
 
 public class XmlRenderer implements CMarkRenderer {
 	private static String tag(String name, Map<String, String> attrs, boolean selfclosing) {
@@ -37,8 +35,6 @@ public class XmlRenderer implements CMarkRenderer {
 		return result.toString();
 	}
 
-	private static Pattern reXMLTag = Pattern.compile("\\<[^>]*\\>");
-
 	private static String toTagName(CMarkNodeType s) {
 		return s.name().toLowerCase();
 	}
@@ -46,10 +42,10 @@ public class XmlRenderer implements CMarkRenderer {
 	class RenderNodes {
 		List<Attr> attrs;
 		String tagname;
-		NodeWalker walker;
-		Event event; Node node; boolean entering;
+		NodeCursor cursor;
+		Node node; boolean entering;
 		char lastOut = '\n';
-		int disableTags = 0;
+		Limits limits = new Limits();
 		int indentLevel = 0;
 		String indent = "  ";
 		boolean unescapedContents;
@@ -58,14 +54,19 @@ public class XmlRenderer implements CMarkRenderer {
 		CMarkNodeType nodetype;
 
 		private void out(Appendable buffer, String s) throws IOException {
-			if (disableTags > 0) {
-				buffer.append(replace(s, reXMLTag, ""));
-			} else {
-				buffer.append(s);
-			}
+			limits.checkOutput(s.length());
+			buffer.append(s);
+			limits.output += s.length();
 			lastOut = s.equals("\n") ? '\n' : ' ';
 		}
 
+		// Write a literal escaped, straight from where the node keeps it.
+		private void outEscaped(Appendable buffer, CharSequence s) throws IOException {
+			limits.checkOutput(s.length());
+			limits.output += escapeXml(s, buffer);
+			lastOut = (s.length() == 1 && s.charAt(0) == '\n') ? '\n' : ' ';
+		}
+
 		private void cr(Appendable buffer) throws IOException {
 			if (lastOut != '\n') {
 				buffer.append('\n');
@@ -73,22 +74,27 @@ public class XmlRenderer implements CMarkRenderer {
 				for (int i = indentLevel; i > 0; i--) {
 					buffer.append(indent);
 				}
+				limits.output += 1 + indentLevel * indent.length();
 			}
 		}
 
 		public void render(Node block, Appendable buffer) throws IOException {
-			walker = block.walker();
+			cursor = block.cursor();
 			long time = 0L;
 
 			if (options.time) { time = System.currentTimeMillis(); }
 
+			limits.maxOutput = options.maxOutputLength;
+			limits.deadline = options.deadline != 0L ? options.deadline : Limits.deadline(options.timeout);
+
 			buffer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
 			buffer.append("<!DOCTYPE CommonMark SYSTEM \"CommonMark.dtd\">\n");
 
 			Map<String, String> attrs = new LinkedHashMap<>();
-			while ((event = walker.next()) != null) {
-				boolean entering = event.entering;
-				Node node = event.node;
+			while (cursor.next()) {
+				limits.check();
+				boolean entering = cursor.entering();
+				Node node = cursor.node();
 				CMarkNodeType nodetype = node.type();
 
 				container = node.isContainer();
@@ -153,9 +159,13 @@ public class XmlRenderer implements CMarkRenderer {
 					if (container) {
 						indentLevel += 1;
 					} else if (!container && !selfClosing) {
-						String lit = node.literal();
+						CharSequence lit = node.literalChars();
 						if (lit != null) {
-							out(buffer, unescapedContents ? lit : escape(lit, false));
+							if (unescapedContents) {
+								out(buffer, lit.toString());
+							} else {
+								outEscaped(buffer, lit);
+							}
 						}
 						out(buffer, tag("/" + tagname, null, false));
 					}
@@ -186,6 +196,15 @@ public class XmlRenderer implements CMarkRenderer {
 
 	@Override
 	public void render(CMarkNode block, Appendable out) throws IOException {
+		if (!OutputBuffer.isBuffered(out)) {
+			OutputBuffer buffer = new OutputBuffer(out);
+			try {
+				new RenderNodes().render((Node)block, buffer);
+			} finally {
+				buffer.flush();
+			}
+			return;
+		}
 		new RenderNodes().render((Node)block, out);
 	}
 
@@ -197,6 +216,9 @@ public class XmlRenderer implements CMarkRenderer {
 		boolean sourcepos;
 		boolean safe;
 		String softbreak = "\n";
+		long maxOutputLength = Limits.NONE;
+		long timeout;
+		long deadline;
 
 		public Options time(boolean flag) {
 			time = flag;
@@ -220,6 +242,33 @@ public class XmlRenderer implements CMarkRenderer {
 			softbreak = value;
 			return this;
 		}
+
+		// Literals are checked against the limit before they are written,
+		// but escaping and the markup of one node may go past it before
+		// rendering stops.
+		public Options maxOutputLength(long length) {
+			if (length < 0) {
+				throw new IllegalArgumentException("length must not be negative: " + length);
+			}
+			maxOutputLength = length;
+			return this;
+		}
+
+		// milliseconds rendering may take, or 0 for no limit
+		public Options timeout(long millis) {
+			if (millis < 0) {
+				throw new IllegalArgumentException("millis must not be negative: " + millis);
+			}
+			timeout = millis;
+			return this;
+		}
+
+		// an absolute System.nanoTime() deadline shared with a parser;
+		// takes precedence over timeout
+		Options deadline(long nanos) {
+			deadline = nanos;
+			return this;
+		}
 	}
 
 }
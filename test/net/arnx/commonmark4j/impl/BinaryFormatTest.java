@@ -0,0 +1,97 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import net.arnx.commonmark4j.CMarkNodeType;
+
+public class BinaryFormatTest {
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		Path src = Paths.get("base/spec/spec.txt");
+
+		Node doc;
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			doc = new Parser().parse(reader);
+		}
+		XmlRenderer.Options options = new XmlRenderer.Options().sourcepos(true);
+		StringBuilder expected = new StringBuilder();
+		new XmlRenderer(options).render(doc, expected);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryFormat.write(doc, out);
+		Path file = Files.createTempFile("commonmark4j", ".bin");
+		try {
+			Files.write(file, out.toByteArray());
+			StringBuilder actual = new StringBuilder();
+			new XmlRenderer(options).render(BinaryFormat.read(file), actual);
+			assertEquals(expected.toString(), actual.toString());
+		} finally {
+			Files.delete(file);
+		}
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(out.size());
+		direct.put(out.toByteArray()).flip();
+		StringBuilder viewed = new StringBuilder();
+		new XmlRenderer(options).render(BinaryFormat.view(direct), viewed);
+		assertEquals(expected.toString(), viewed.toString());
+		assertEquals(0, direct.position());
+
+		doc = new Parser().parse(new BufferedReader(new StringReader(
+				"- [a](/url \"t\") &#xD800;\n\n> b\n")));
+		Node item = doc.firstChild().firstChild();
+		out.reset();
+		BinaryFormat.write(item, out);
+		Node read = BinaryFormat.read(ByteBuffer.wrap(out.toByteArray()));
+		assertEquals(CMarkNodeType.ITEM, read.type());
+		assertNull(read.parent());
+		assertNull(read.next());
+		assertEquals("t", read.firstChild().firstChild().title());
+		assertEquals(item.firstChild().lastChild().literal(), read.firstChild().lastChild().literal());
+	}
+
+	@Test
+	public void testBroken() throws IOException {
+		Node doc = new Parser().parse(new BufferedReader(new StringReader("# a\n\nb *c*\n")));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryFormat.write(doc, out);
+		byte[] bytes = out.toByteArray();
+
+		byte[] version = bytes.clone();
+		version[7] = (byte)(BinaryFormat.VERSION + 1);
+		try {
+			BinaryFormat.read(ByteBuffer.wrap(version));
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("version"));
+		}
+
+		for (int i = 0; i < bytes.length; i++) {
+			byte[] broken = bytes.clone();
+			broken[i] ^= 0x55;
+			try {
+				Node read = BinaryFormat.read(ByteBuffer.wrap(broken));
+				new HtmlRenderer().render(read, new StringBuilder());
+			} catch (IOException e) {
+				// rejected
+			}
+		}
+		try {
+			BinaryFormat.read(ByteBuffer.wrap(bytes, 0, bytes.length - 1));
+			fail();
+		} catch (IOException e) {
+			// truncated
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CommonTest {
+
+	@Test
+	public void testIsPunctuation() {
+		for (char c : "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~".toCharArray()) {
+			assertTrue(String.valueOf(c), Common.isPunctuation(c));
+		}
+		assertFalse(Common.isPunctuation('a'));
+		assertFalse(Common.isPunctuation(' '));
+		assertFalse(Common.isPunctuation(-1));
+		assertTrue(Common.isPunctuation('\u00A1'));
+		assertTrue(Common.isPunctuation('\u2014'));
+		assertTrue(Common.isPunctuation('\u3001'));
+		assertFalse(Common.isPunctuation('\u00A9'));
+		assertFalse(Common.isPunctuation('\u3042'));
+	}
+
+	@Test
+	public void testIsWhitespace() {
+		for (char c : " \t\n\f\r\u00A0\u1680\u2000\u200A\u202F\u205F\u3000".toCharArray()) {
+			assertTrue(Integer.toHexString(c), Common.isWhitespace(c));
+		}
+		assertFalse(Common.isWhitespace('a'));
+		assertFalse(Common.isWhitespace('\u000B'));
+		assertFalse(Common.isWhitespace('\u200B'));
+		assertFalse(Common.isWhitespace(-1));
+	}
+
+	@Test
+	public void testEscapeXml() throws Exception {
+		String s = "a < b && \"c\" &amp; &#x1F600; &#12; &Foo9; &#xZ; &#123456789; &1a;";
+		assertEquals("a &lt; b &amp;&amp; &quot;c&quot; &amp;amp; &amp;#x1F600; &amp;#12; &amp;Foo9; &amp;#xZ; &amp;#123456789; &amp;1a;",
+				Common.escapeXml(s, false));
+		assertEquals("a &lt; b &amp;&amp; &quot;c&quot; &amp; &#x1F600; &#12; &Foo9; &amp;#xZ; &amp;#123456789; &amp;1a;",
+				Common.escapeXml(s, true));
+		String plain = "no special characters";
+		assertSame(plain, Common.escapeXml(plain, true));
+
+		StringBuilder sb = new StringBuilder("x");
+		assertEquals(7, Common.escapeXml(new Slice("<a&b>", 1, 4), sb));
+		assertEquals("xa&amp;b", sb.toString());
+	}
+}
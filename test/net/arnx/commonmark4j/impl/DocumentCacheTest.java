@@ -0,0 +1,52 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+public class DocumentCacheTest {
+
+	@Test
+	public void testCache() throws IOException {
+		String spec = new String(Files.readAllBytes(Paths.get("base/spec/spec.txt")), "UTF-8");
+		StringBuilder expected = new StringBuilder();
+		new HtmlRenderer().render(new Parser().parse(new BufferedReader(new StringReader(spec))), expected);
+
+		DocumentCache cache = new DocumentCache(new Parser(), 1024 * 1024);
+		for (int i = 0; i < 3; i++) {
+			StringBuilder actual = new StringBuilder();
+			new HtmlRenderer().render(cache.parse(spec), actual);
+			assertEquals(expected.toString(), actual.toString());
+		}
+		assertEquals(1, cache.misses());
+		assertEquals(2, cache.hits());
+		assertNotNull(((CompactDocument.NodeView)cache.parse(spec)).document().mapped);
+		assertEquals(3, cache.hits());
+		assertEquals(1, cache.size());
+		assertTrue(cache.bytes() > 0);
+
+		cache = new DocumentCache(new Parser(), 280);
+		cache.parse("# a\n");
+		cache.parse("# b\n");
+		cache.parse("# a\n");
+		cache.parse("*c*\n");
+		assertEquals(1, cache.hits());
+		assertEquals(1, cache.evictions());
+		assertEquals(2, cache.size());
+		cache.parse("# a\n");
+		assertEquals(2, cache.hits());
+		cache.parse("# b\n");
+		assertEquals(4, cache.misses());
+		assertTrue(cache.bytes() <= 280);
+
+		cache.parse(spec);
+		assertEquals(5, cache.misses());
+		assertEquals(2, cache.size());
+	}
+}
@@ -0,0 +1,88 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import net.arnx.commonmark4j.CMarkTransformer;
+
+public class ExcerptTest {
+	private static class CountingReader extends StringReader {
+		int count;
+
+		public CountingReader(String s) {
+			super(s);
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			int n = super.read(cbuf, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+
+	private static String transform(CMarkTransformer transformer, Reader reader) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		transformer.transform(new BufferedReader(reader, 16), sb);
+		return sb.toString();
+	}
+
+	@Test
+	public void testExcerptBlocks() throws IOException {
+		String text = "para [a]\nline2\n# head\n- x\n- y\n\nmore\n\n[a]: /url\n";
+		assertEquals("<p>para [a]\nline2</p>\n<h1>head</h1>\n",
+				transform(CMarkTransformer.newTransformer().excerptBlocks(2), new StringReader(text)));
+		assertEquals("<p>para <a href=\"/url\">a</a>\nline2</p>\n<h1>head</h1>\n<ul>\n<li>x</li>\n<li>y</li>\n</ul>\n<p>more</p>\n",
+				transform(CMarkTransformer.newTransformer().excerptBlocks(5), new StringReader(text)));
+	}
+
+	@Test
+	public void testExcerptLength() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			sb.append("lorem ipsum\n");
+		}
+		CountingReader reader = new CountingReader(sb.toString());
+		assertEquals("<p>lorem ipsum\nlorem ipsum\nlorem ip</p>\n",
+				transform(CMarkTransformer.newTransformer().excerptLength(30), reader));
+		assertTrue(reader.count < 8192 * 2);
+
+		sb.setLength(0);
+		for (int i = 0; i < 100000; i++) {
+			sb.append("lorem ipsum ");
+		}
+		reader = new CountingReader(sb.toString());
+		assertEquals("<p>lorem ipsum lorem ipsum lorem</p>\n",
+				transform(CMarkTransformer.newTransformer().excerptLength(30), reader));
+		assertTrue(reader.count < 8192 * 2);
+
+		reader = new CountingReader("> quoted " + sb);
+		assertEquals("<blockquote>\n<p>quoted lorem ipsum lorem ips</p>\n</blockquote>\n",
+				transform(CMarkTransformer.newTransformer().excerptLength(30), reader));
+		assertTrue(reader.count < 8192 * 2);
+	}
+
+	@Test
+	public void testNegativeExcerpt() {
+		try {
+			CMarkTransformer.newTransformer().excerptBlocks(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// negative
+		}
+		try {
+			new Parser.Options().excerptLength(-1);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// negative
+		}
+	}
+}
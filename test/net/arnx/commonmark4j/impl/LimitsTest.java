@@ -0,0 +1,152 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import net.arnx.commonmark4j.CMarkLimitException;
+import net.arnx.commonmark4j.CMarkLimitException.Limit;
+import net.arnx.commonmark4j.CMarkTransformer;
+
+public class LimitsTest {
+	private static String repeat(String s, int count) {
+		StringBuilder sb = new StringBuilder(s.length() * count);
+		for (int i = 0; i < count; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private static Limit transform(CMarkTransformer transformer, String text) throws IOException {
+		try {
+			transformer.transform(new BufferedReader(new StringReader(text)), new StringBuilder());
+			return null;
+		} catch (CMarkLimitException e) {
+			return e.limit();
+		}
+	}
+
+	@Test
+	public void testMaxInputLength() throws IOException {
+		assertNull(transform(CMarkTransformer.newTransformer().maxInputLength(100), repeat("a", 100)));
+		assertEquals(Limit.INPUT_LENGTH, transform(CMarkTransformer.newTransformer().maxInputLength(100), repeat("a", 101)));
+	}
+
+	@Test
+	public void testMaxNodes() throws IOException {
+		// a paragraph, 25 text nodes and 24 soft breaks
+		assertNull(transform(CMarkTransformer.newTransformer().maxNodes(50), repeat("a\n", 25)));
+		assertEquals(Limit.NODE_COUNT, transform(CMarkTransformer.newTransformer().maxNodes(49), repeat("a\n", 25)));
+		assertEquals(Limit.NODE_COUNT, transform(CMarkTransformer.newTransformer().maxNodes(1000), repeat("> a\n\n", 1000)));
+	}
+
+	@Test
+	public void testMaxOutputLength() throws IOException {
+		String text = "[a]: /" + repeat("x", 1000) + "\n\n" + repeat("[a]", 1000);
+		assertNull(transform(CMarkTransformer.newTransformer(), text));
+		assertEquals(Limit.OUTPUT_LENGTH, transform(CMarkTransformer.newTransformer().maxOutputLength(100000), text));
+	}
+
+	@Test
+	public void testMaxOutputLengthBeforeWriting() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		try {
+			CMarkTransformer.newTransformer().maxOutputLength(1000)
+					.transform(new BufferedReader(new StringReader("    " + repeat("x", 100000) + "\n")), sb);
+			fail();
+		} catch (CMarkLimitException e) {
+			assertEquals(Limit.OUTPUT_LENGTH, e.limit());
+		}
+		assertTrue(sb.length() <= 1000);
+	}
+
+	@Test
+	public void testNegativeLimits() {
+		CMarkTransformer transformer = CMarkTransformer.newTransformer();
+		for (Runnable r : new Runnable[] {
+				() -> transformer.maxNesting(-1),
+				() -> transformer.maxInputLength(-1),
+				() -> transformer.maxNodes(-1),
+				() -> transformer.maxOutputLength(-1),
+				() -> transformer.timeout(-1),
+				() -> new Parser.Options().maxInputLength(-1),
+				() -> new Parser.Options().maxNodes(-1),
+				() -> new Parser.Options().timeout(-1),
+				() -> new HtmlRenderer.Options().maxOutputLength(-1),
+				() -> new XmlRenderer.Options().timeout(-1) }) {
+			try {
+				r.run();
+				fail();
+			} catch (IllegalArgumentException e) {
+				// rejected
+			}
+		}
+	}
+
+	@Test
+	public void testUnsupportedLimits() {
+		CMarkTransformer transformer = new SimpleTransformer();
+		for (Runnable r : new Runnable[] {
+				() -> transformer.maxNesting(10),
+				() -> transformer.maxInputLength(10),
+				() -> transformer.maxNodes(10),
+				() -> transformer.maxOutputLength(10),
+				() -> transformer.timeout(10),
+				() -> transformer.excerptBlocks(10),
+				() -> transformer.excerptLength(10) }) {
+			try {
+				r.run();
+				fail();
+			} catch (UnsupportedOperationException e) {
+				// not implemented
+			}
+		}
+	}
+
+	// A transformer with only the methods it had before the limits.
+	private static class SimpleTransformer implements CMarkTransformer {
+		@Override
+		public CMarkTransformer format(String format) {
+			return this;
+		}
+
+		@Override
+		public CMarkTransformer safe(boolean value) {
+			return this;
+		}
+
+		@Override
+		public CMarkTransformer smart(boolean value) {
+			return this;
+		}
+
+		@Override
+		public CMarkTransformer softbreak(String text) {
+			return this;
+		}
+
+		@Override
+		public CMarkTransformer sourcepos(boolean value) {
+			return this;
+		}
+
+		@Override
+		public CMarkTransformer time(boolean value) {
+			return this;
+		}
+
+		@Override
+		public void transform(BufferedReader in, Appendable out) throws IOException {
+			out.append(in.readLine());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testTimeout() throws IOException {
+		assertEquals(Limit.TIMEOUT, transform(CMarkTransformer.newTransformer().timeout(1), repeat("*a **a ", 1000000)));
+	}
+}
@@ -0,0 +1,101 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.junit.Test;
+
+import net.arnx.commonmark4j.CMarkNode;
+import net.arnx.commonmark4j.CMarkNodeType;
+import net.arnx.commonmark4j.CMarkParser;
+import net.arnx.commonmark4j.CMarkTransformer;
+
+public class LongLineTest {
+	private static final int SIZE = 8 * 1024 * 1024;
+
+	private static String fill(String s, int size) {
+		StringBuilder sb = new StringBuilder(size + s.length());
+		while (sb.length() < size) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private static CMarkNode parse(String text) throws IOException {
+		return CMarkParser.newParser().parse(new BufferedReader(new StringReader(text)));
+	}
+
+	// Returns the bytes allocated by this thread while parsing text, per
+	// character of input.
+	private static long allocatedPerChar(String text) throws IOException {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean)bean;
+		assumeTrue(mx.isThreadAllocatedMemorySupported() && mx.isThreadAllocatedMemoryEnabled());
+
+		long id = Thread.currentThread().getId();
+		parse(text); // warm up
+		long before = mx.getThreadAllocatedBytes(id);
+		parse(text);
+		return (mx.getThreadAllocatedBytes(id) - before) / text.length();
+	}
+
+	@Test(timeout = 20000)
+	public void testSingleLine() throws IOException {
+		String text = fill("QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVo0123456789+/", SIZE);
+
+		CMarkNode para = parse(text).firstChild();
+		assertEquals(CMarkNodeType.PARAGRAPH, para.type());
+		assertEquals(text, para.firstChild().literal());
+		assertNull(para.firstChild().next());
+
+		// the line, the paragraph content and the text literal, but no
+		// more copies than that
+		assertTrue(allocatedPerChar(text) < 16);
+	}
+
+	@Test(timeout = 20000)
+	public void testSingleLineWithMarkup() throws IOException {
+		String text = fill("{\"key\":[1,2,3],\"v\":\"a_b*c\"},", SIZE / 4);
+
+		StringBuilder sb = new StringBuilder();
+		CMarkTransformer.newTransformer().transform(new BufferedReader(new StringReader(text)), sb);
+		assertTrue(sb.toString().startsWith("<p>{&quot;key&quot;:[1,2,3],&quot;v&quot;:&quot;a_b<em>c&quot;},"));
+	}
+
+	@Test(timeout = 20000)
+	public void testSingleLineHeader() throws IOException {
+		String text = "#" + fill(" ", SIZE) + "a" + fill(" ", SIZE) + "#";
+
+		CMarkNode header = parse(text).firstChild();
+		assertEquals(CMarkNodeType.HEADER, header.type());
+		assertEquals("a", header.firstChild().literal());
+	}
+
+	@Test(timeout = 20000)
+	public void testLongParagraph() throws IOException {
+		String text = fill("lorem ipsum dolor sit amet\n", SIZE);
+
+		CMarkNode doc = parse(text);
+		assertEquals(CMarkNodeType.PARAGRAPH, doc.firstChild().type());
+		assertNull(doc.firstChild().next());
+		assertTrue(allocatedPerChar(text) < 64);
+	}
+
+	@Test(timeout = 20000)
+	public void testLongCodeBlock() throws IOException {
+		String line = "    int x = 1;\n";
+		String text = fill(line, SIZE) + fill("\n    ", SIZE / 16);
+
+		CMarkNode code = parse(text).firstChild();
+		assertEquals(CMarkNodeType.CODE_BLOCK, code.type());
+		assertEquals(text.substring(0, text.lastIndexOf(line) + line.length()).replace("    int", "int"), code.literal());
+		assertTrue(allocatedPerChar(text) < 16);
+	}
+}
@@ -1,14 +1,29 @@
 package net.arnx.commonmark4j.impl;
 
+import static org.junit.Assert.*;
+
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
 
+import net.arnx.commonmark4j.CMarkLimitException;
 import net.arnx.commonmark4j.CMarkNode;
+import net.arnx.commonmark4j.CMarkNodeType;
 import net.arnx.commonmark4j.CMarkParser;
 
 public class NodeTest {
@@ -25,4 +40,467 @@ public class NodeTest {
 		}
 	}
 
+	@Test
+	public void testLazyInlines() throws IOException {
+		Path src = Paths.get("base/spec/spec.txt");
+
+		StringBuilder eager = new StringBuilder();
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			new HtmlRenderer().render(new Parser().parse(reader), eager);
+		}
+		StringBuilder lazy = new StringBuilder();
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			new HtmlRenderer().render(new Parser(new Parser.Options().lazy(true)).parse(reader), lazy);
+		}
+		assertEquals(eager.toString(), lazy.toString());
+
+		Node doc = new Parser(new Parser.Options().lazy(true))
+				.parse(new BufferedReader(new StringReader("# *a*\n\n[b]\n\n[b]: /url\n")));
+		Node header = doc._firstChild;
+		Node para = header._next;
+		assertNull(header._firstChild);
+		assertNull(para._firstChild);
+		assertEquals(CMarkNodeType.LINK, para.firstChild().type());
+		assertEquals("/url", para.firstChild().destination());
+		assertNull(header._firstChild);
+		assertEquals(CMarkNodeType.EMPH, header.lastChild().type());
+
+		doc = new Parser(new Parser.Options().lazy(true).maxNodes(10))
+				.parse(new BufferedReader(new StringReader("*a* *b* *c* *d* *e*\n")));
+		para = doc._firstChild;
+		try {
+			para.firstChild();
+			fail();
+		} catch (UncheckedIOException e) {
+			assertTrue(e.getCause() instanceof CMarkLimitException);
+		}
+		assertNull(para._firstChild);
+		assertNotNull(((Node.ParagraphNode)para)._string_content);
+	}
+
+	@Test
+	public void testLazyInlinesConcurrently() throws Exception {
+		Path src = Paths.get("base/spec/spec.txt");
+
+		StringBuilder expected = new StringBuilder();
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			new HtmlRenderer().render(new Parser().parse(reader), expected);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int n = 0; n < 4; n++) {
+				Node doc;
+				try (BufferedReader reader = Files.newBufferedReader(src)) {
+					doc = new Parser(new Parser.Options().lazy(true)).parse(reader);
+				}
+				List<Future<String>> results = new ArrayList<>();
+				for (int i = 0; i < 4; i++) {
+					results.add(executor.submit(() -> {
+						StringBuilder sb = new StringBuilder();
+						new HtmlRenderer().render(doc, sb);
+						return sb.toString();
+					}));
+				}
+				for (Future<String> result : results) {
+					assertEquals(expected.toString(), result.get());
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCreate() throws IOException {
+		Node doc = Node.create(CMarkNodeType.DOCUMENT, new int[][] {{1, 1}, {1, 6}});
+		Node para = Node.create(CMarkNodeType.PARAGRAPH, new int[][] {{1, 1}, {1, 6}});
+		Node emph = Node.create(CMarkNodeType.EMPH, null);
+		Node text = Node.create(CMarkNodeType.TEXT, null);
+		text.literal("hello");
+		emph.appendChild(text);
+		para.appendChild(emph);
+		doc.appendChild(para);
+		assertArrayEquals(new int[] {1, 6}, para.sourcepos()[1]);
+		StringBuilder sb = new StringBuilder();
+		new HtmlRenderer(new HtmlRenderer.Options().sourcepos(true)).render(doc, sb);
+		assertEquals("<p data-sourcepos=\"1:1-1:6\"><em>hello</em></p>\n", sb.toString());
+
+		Node list = new Parser().parse(new BufferedReader(new StringReader("1. a\n2. b\n"))).firstChild();
+		list.listStart(3);
+		assertEquals(Integer.valueOf(3), list.listStart());
+		try {
+			list.listStart(null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// null
+		}
+		try {
+			list.listTight(null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// null
+		}
+		try {
+			list.listDelimiter(null);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// null
+		}
+		assertEquals(Boolean.TRUE, list.listTight());
+		assertEquals(Character.valueOf('.'), list.listDelimiter());
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		Path src = Paths.get("base/spec/spec.txt");
+
+		XmlRenderer.Options options = new XmlRenderer.Options().sourcepos(true);
+		StringBuilder nodes = new StringBuilder();
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			new XmlRenderer(options).render(new Parser().parse(reader), nodes);
+		}
+		StringBuilder compact = new StringBuilder();
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			new XmlRenderer(options).render(new Parser(new Parser.Options().compact(true)).parse(reader), compact);
+		}
+		assertEquals(nodes.toString(), compact.toString());
+
+		Node doc = new Parser(new Parser.Options().compact(true))
+				.parse(new BufferedReader(new StringReader("## *a*\n\n- b\n- `c`\n")));
+		Node header = doc.firstChild();
+		Node list = doc.lastChild();
+		assertEquals(2, header.level());
+		assertEquals("a", header.firstChild().firstChild().literal());
+		assertEquals(header, list.prev());
+		assertEquals(doc, list.parent());
+		assertEquals(ListType.BULLET, list.listType());
+		assertTrue(list.listTight());
+		assertEquals("c", list.lastChild().firstChild().firstChild().literal());
+		assertArrayEquals(new int[][] {{3, 1}, {4, 5}}, list.sourcepos());
+		try {
+			list.unlink();
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// read-only
+		}
+	}
+
+	@Test
+	public void testCursor() throws IOException {
+		Node doc = new Parser().parse(new BufferedReader(new StringReader(
+				"# *a*\n\n- [b](/url) `c`\n\n![d *e*](/img)\n")));
+		for (Node root : new Node[] { doc, new CompactDocument(doc).root() }) {
+			StringBuilder walked = new StringBuilder();
+			Node.NodeWalker walker = root.walker();
+			Node.Event event;
+			while ((event = walker.next()) != null) {
+				walked.append(event.entering ? '+' : '-').append(event.node.type()).append(' ');
+			}
+			StringBuilder cursored = new StringBuilder();
+			Node.NodeCursor cursor = root.cursor();
+			while (cursor.next()) {
+				cursored.append(cursor.entering() ? '+' : '-').append(cursor.node().type()).append(' ');
+			}
+			assertEquals(walked.toString(), cursored.toString());
+			assertNull(cursor.node());
+			assertNull(walker.next());
+
+			StringBuilder skipped = new StringBuilder();
+			cursor = root.cursor();
+			while (cursor.next()) {
+				CMarkNodeType t = cursor.node().type();
+				skipped.append(cursor.entering() ? '+' : '-').append(t).append(' ');
+				if (t == CMarkNodeType.LINK || t == CMarkNodeType.IMAGE || t == CMarkNodeType.HEADER) {
+					cursor.skipChildren();
+				}
+			}
+			assertEquals("+DOCUMENT +HEADER -HEADER +LIST +ITEM +PARAGRAPH +LINK -LINK +TEXT +CODE "
+					+ "-PARAGRAPH -ITEM -LIST +PARAGRAPH +IMAGE -IMAGE -PARAGRAPH -DOCUMENT ", skipped.toString());
+		}
+
+		for (Node root : new Node[] { doc, new CompactDocument(doc).root() }) {
+			Node.NodeWalker walker = root.walker();
+			List<Node.Event> events = new ArrayList<>();
+			Node.Event event;
+			while ((event = walker.next()) != null) {
+				assertTrue(events.isEmpty() || events.get(events.size() - 1) != event);
+				events.add(event);
+			}
+			StringBuilder kept = new StringBuilder();
+			for (Node.Event e : events) {
+				kept.append(e.entering ? '+' : '-').append(e.node.type()).append(' ');
+			}
+			StringBuilder walked = new StringBuilder();
+			Node.NodeCursor cursor = root.cursor();
+			while (cursor.next()) {
+				walked.append(cursor.entering() ? '+' : '-').append(cursor.node().type()).append(' ');
+			}
+			assertEquals(walked.toString(), kept.toString());
+			assertEquals(root, events.get(0).node);
+			assertEquals(root, events.get(events.size() - 1).node);
+
+			walker = root.walker();
+			walker.next();
+			assertEquals(root.firstChild(), walker.current);
+			walker.resumeAt(root.lastChild(), false);
+			event = walker.next();
+			assertEquals(root.lastChild(), event.node);
+			assertFalse(event.entering);
+			assertEquals(root, walker.current);
+			assertFalse(walker.entering);
+		}
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		Path src = Paths.get("base/spec/spec.txt");
+
+		for (Parser.Options options : new Parser.Options[] {
+				new Parser.Options(), new Parser.Options().lazy(true), new Parser.Options().compact(true) }) {
+			Node doc;
+			try (BufferedReader reader = Files.newBufferedReader(src)) {
+				doc = new Parser(options).parse(reader);
+			}
+			long size = doc.spliterator().estimateSize();
+			List<CMarkNode> iterated = new ArrayList<>();
+			doc.forEach(iterated::add);
+			assertEquals(iterated.size(), size);
+			assertEquals(iterated, doc.stream().parallel().collect(Collectors.toList()));
+
+			Node list = (Node)doc.stream().filter(n -> n.type() == CMarkNodeType.LIST).skip(5).findFirst().get();
+			List<String> walked = new ArrayList<>();
+			Node.NodeCursor cursor = list.cursor();
+			while (cursor.next()) {
+				if (cursor.entering()) {
+					walked.add(cursor.node().type() + ":" + cursor.node().literal());
+				}
+			}
+			assertEquals(walked, list.stream().parallel()
+					.map(n -> n.type() + ":" + n.literal()).collect(Collectors.toList()));
+			assertEquals(list.stream().count(), list.stream().parallel().count());
+		}
+	}
+
+	@Test
+	public void testDefaultStream() {
+		SimpleNode doc = new SimpleNode(CMarkNodeType.DOCUMENT, null);
+		SimpleNode para = new SimpleNode(CMarkNodeType.PARAGRAPH, doc);
+		new SimpleNode(CMarkNodeType.TEXT, para);
+		new SimpleNode(CMarkNodeType.EMPH, para);
+		new SimpleNode(CMarkNodeType.HORIZONTAL_RULE, doc);
+		assertEquals("[DOCUMENT, PARAGRAPH, TEXT, EMPH, HORIZONTAL_RULE]",
+				doc.stream().map(CMarkNode::type).collect(Collectors.toList()).toString());
+		assertEquals("[PARAGRAPH, TEXT, EMPH]",
+				para.stream().map(CMarkNode::type).collect(Collectors.toList()).toString());
+	}
+
+	// A node implemented outside the library, with no spliterator of its own.
+	private static class SimpleNode implements CMarkNode {
+		private final CMarkNodeType type;
+		private final SimpleNode parent;
+		private SimpleNode firstChild;
+		private SimpleNode lastChild;
+		private SimpleNode prev;
+		private SimpleNode next;
+
+		SimpleNode(CMarkNodeType type, SimpleNode parent) {
+			this.type = type;
+			this.parent = parent;
+			if (parent != null) {
+				if (parent.lastChild != null) {
+					parent.lastChild.next = this;
+					this.prev = parent.lastChild;
+				} else {
+					parent.firstChild = this;
+				}
+				parent.lastChild = this;
+			}
+		}
+
+		@Override
+		public CMarkNodeType type() {
+			return type;
+		}
+
+		@Override
+		public int[][] sourcepos() {
+			return null;
+		}
+
+		@Override
+		public String literal() {
+			return null;
+		}
+
+		@Override
+		public CMarkNode parent() {
+			return parent;
+		}
+
+		@Override
+		public CMarkNode firstChild() {
+			return firstChild;
+		}
+
+		@Override
+		public CMarkNode lastChild() {
+			return lastChild;
+		}
+
+		@Override
+		public CMarkNode prev() {
+			return prev;
+		}
+
+		@Override
+		public CMarkNode next() {
+			return next;
+		}
+
+		@Override
+		public Iterator<CMarkNode> iterator() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Test
+	public void testFreeze() throws Exception {
+		Path src = Paths.get("base/spec/spec.txt");
+
+		Node doc;
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			doc = new Parser().parse(reader);
+		}
+		StringBuilder expected = new StringBuilder();
+		new HtmlRenderer(new HtmlRenderer.Options().sourcepos(true)).render(doc, expected);
+
+		Node frozen = doc.freeze();
+		assertSame(frozen, frozen.freeze());
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(() -> {
+					StringBuilder sb = new StringBuilder();
+					new HtmlRenderer(new HtmlRenderer.Options().sourcepos(true)).render(frozen, sb);
+					return sb.toString();
+				}));
+			}
+			for (Future<String> result : results) {
+				assertEquals(expected.toString(), result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		Node link = (Node)frozen.stream().filter(n -> n.type() == CMarkNodeType.LINK).findFirst().get();
+		try {
+			link.destination("/changed");
+			fail();
+		} catch (UnsupportedOperationException e) {
+			// frozen
+		}
+		String destination = link.destination();
+		Node derived = frozen.derive(link, n -> n.destination("/changed"));
+		Node derivedLink = (Node)derived.stream().filter(n -> n.type() == CMarkNodeType.LINK).findFirst().get();
+		assertEquals("/changed", derivedLink.destination());
+		assertEquals(link.title(), derivedLink.title());
+		assertEquals(destination, link.destination());
+		assertEquals(frozen.stream().count(), derived.stream().count());
+
+		Node mutableLink = (Node)doc.stream().filter(n -> n.type() == CMarkNodeType.LINK).findFirst().get();
+		derived = doc.derive(mutableLink, n -> n.destination("/changed"));
+		derivedLink = (Node)derived.stream().filter(n -> n.type() == CMarkNodeType.LINK).findFirst().get();
+		assertEquals("/changed", derivedLink.destination());
+		assertEquals(destination, mutableLink.destination());
+		try {
+			doc.derive(frozen, n -> {});
+			fail();
+		} catch (IllegalArgumentException e) {
+			// not in doc
+		}
+	}
+
+	@Test
+	public void testDeriveOverlay() throws IOException {
+		Path src = Paths.get("base/spec/spec.txt");
+
+		Node doc;
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			doc = new Parser().parse(reader);
+		}
+		Node frozen = doc.freeze();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryFormat.write(frozen, out);
+		ByteBuffer direct = ByteBuffer.allocateDirect(out.size());
+		direct.put(out.toByteArray()).flip();
+		Node mapped = BinaryFormat.view(direct);
+
+		List<Node> links = doc.find(CMarkNodeType.LINK);
+		Node code = doc.find(CMarkNodeType.CODE_BLOCK).get(3);
+		links.get(0).destination("/first");
+		links.get(7).title("seventh \u00e9");
+		code.info("java");
+		StringBuilder expected = new StringBuilder();
+		new HtmlRenderer(new HtmlRenderer.Options().sourcepos(true)).render(doc, expected);
+
+		for (Node root : new Node[] { frozen, mapped }) {
+			CompactDocument base = ((CompactDocument.NodeView)root).document();
+			Node derived = root.derive(root.find(CMarkNodeType.LINK).get(0), n -> n.destination("/first"));
+			derived = derived.derive(derived.find(CMarkNodeType.LINK).get(7), n -> n.title("seventh \u00e9"));
+			TreeDiff.hash(derived);
+			derived = derived.derive(derived.find(CMarkNodeType.CODE_BLOCK).get(3), n -> n.info("java"));
+
+			CompactDocument document = ((CompactDocument.NodeView)derived).document();
+			assertSame(base, document.base);
+			assertSame(base.data, document.data);
+			assertSame(base.records, document.records);
+			assertSame(base.mapped, document.mapped);
+			assertTrue(document.edited.length < 10);
+
+			StringBuilder actual = new StringBuilder();
+			new HtmlRenderer(new HtmlRenderer.Options().sourcepos(true)).render(derived, actual);
+			assertEquals(expected.toString(), actual.toString());
+			assertEquals(TreeDiff.hash(doc), TreeDiff.hash(derived));
+			assertEquals(TreeDiff.hash(doc), TreeDiff.hash(document.onHeap().root()));
+			assertSame(document.onHeap(), document.onHeap());
+
+			Node list = derived.find(CMarkNodeType.LIST).get(2);
+			assertEquals(TreeDiff.hash(doc.find(CMarkNodeType.LIST).get(2)), TreeDiff.hash(list.freeze()));
+			assertEquals(TreeDiff.hash(list), TreeDiff.hash(list.freeze()));
+		}
+	}
+
+	@Test
+	public void testIndex() throws IOException {
+		Path src = Paths.get("base/spec/spec.txt");
+
+		Node indexed;
+		try (BufferedReader reader = Files.newBufferedReader(src)) {
+			indexed = new Parser(new Parser.Options().index(true).lazy(true)).parse(reader);
+		}
+		for (Parser.Options options : new Parser.Options[] { new Parser.Options(), new Parser.Options().compact(true) }) {
+			Node doc;
+			try (BufferedReader reader = Files.newBufferedReader(src)) {
+				doc = new Parser(options).parse(reader);
+			}
+			assertEquals(describe(doc.headers()), describe(indexed.headers()));
+			assertEquals(describe(doc.links()), describe(indexed.links()));
+			assertEquals(describe(doc.images()), describe(indexed.images()));
+		}
+
+		Node doc = new Parser(new Parser.Options().index(true)).parse(new BufferedReader(new StringReader(
+				"a\n=\n\n![b ![c](/c) <http://d>](/b)\n\n# e\n")));
+		assertEquals("[HEADER:null, HEADER:null]", describe(doc.headers()));
+		assertEquals("[IMAGE:/b, IMAGE:/c]", describe(doc.images()));
+		assertEquals("[LINK:http://d]", describe(doc.links()));
+
+		doc = new Parser(new Parser.Options().index(true).excerptBlocks(1)).parse(new BufferedReader(new StringReader(
+				"> # a\n# b\n")));
+		assertEquals(1, doc.headers().size());
+	}
+
+	private static String describe(List<Node> nodes) {
+		return nodes.stream().map(n -> n.type() + ":" + n.destination()).collect(Collectors.toList()).toString();
+	}
 }
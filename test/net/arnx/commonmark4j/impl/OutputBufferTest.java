@@ -0,0 +1,51 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+public class OutputBufferTest {
+
+	@Test
+	public void testRender() throws IOException {
+		Node doc;
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get("base/spec/spec.txt"))) {
+			doc = new Parser().parse(reader);
+		}
+		StringBuilder expected = new StringBuilder();
+		new HtmlRenderer().render(doc, expected);
+
+		StringWriter writer = new StringWriter();
+		new HtmlRenderer().render(doc, writer);
+		assertEquals(expected.toString(), writer.toString());
+
+		int[] calls = new int[1];
+		StringBuilder appended = new StringBuilder();
+		new HtmlRenderer().render(doc, new Appendable() {
+			@Override
+			public Appendable append(CharSequence s) {
+				calls[0]++;
+				appended.append(s);
+				return this;
+			}
+
+			@Override
+			public Appendable append(CharSequence s, int start, int end) {
+				return append(s.subSequence(start, end));
+			}
+
+			@Override
+			public Appendable append(char c) {
+				return append(String.valueOf(c));
+			}
+		});
+		assertEquals(expected.toString(), appended.toString());
+		assertTrue(calls[0] <= expected.length() / 8192 + 1);
+	}
+}
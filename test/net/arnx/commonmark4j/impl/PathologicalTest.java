@@ -0,0 +1,148 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import net.arnx.commonmark4j.CMarkTransformer;
+
+public class PathologicalTest {
+
+	private static String repeat(String s, int count) {
+		StringBuilder sb = new StringBuilder(s.length() * count);
+		for (int i = 0; i < count; i++) {
+			sb.append(s);
+		}
+		return sb.toString();
+	}
+
+	private static String transform(String text) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		CMarkTransformer.newTransformer().transform(new BufferedReader(new StringReader(text)), sb);
+		return sb.toString();
+	}
+
+	@Test(timeout = 10000)
+	public void testLinkDestinationWithManyParens() throws IOException {
+		assertEquals("<p>[a](" + repeat("(", 50000) + "\\</p>\n", transform("[a](" + repeat("(\\", 50000)));
+	}
+
+	@Test(timeout = 10000)
+	public void testLinkDestinationWithManyBackslashes() throws IOException {
+		assertEquals("<p>[a](&lt;" + repeat("\\", 50000) + "</p>\n", transform("[a](<" + repeat("\\", 100000)));
+	}
+
+	@Test(timeout = 10000)
+	public void testReferenceWithManyEscapedParens() throws IOException {
+		String parens = repeat("\\(", 50000);
+		assertEquals("<p><a href=\"" + repeat("(", 50000) + "\">a</a></p>\n",
+				transform("[a]: " + parens + "\n\n[a]"));
+	}
+
+	@Test(timeout = 10000)
+	public void testLinkTitleWithManyEscapedQuotes() throws IOException {
+		String quotes = repeat("\\\"", 50000);
+		assertEquals("<p>[a](b &quot;" + repeat("&quot;", 50000) + "</p>\n",
+				transform("[a](b \"" + quotes));
+	}
+
+	@Test(timeout = 10000)
+	public void testUnmatchedBackticksOfIncreasingLength() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 1; i <= 1000; i++) {
+			sb.append(repeat("`", i)).append('a');
+		}
+		assertEquals("<p>" + sb + "</p>\n", transform(sb.toString()));
+	}
+
+	@Test(timeout = 10000)
+	public void testUnmatchedBackticksBeforeCodeSpans() throws IOException {
+		String html = transform("``" + repeat(" a ` b", 100000));
+		assertEquals(50000, html.split("<code>", -1).length - 1);
+		assertTrue(html.startsWith("<p>`` a <code>b a</code> b a <code>"));
+	}
+
+	@Test(timeout = 10000)
+	public void testNestedBrackets() throws IOException {
+		String text = repeat("[", 50000) + "a" + repeat("]", 50000);
+		assertEquals("<p>" + text + "</p>\n", transform(text));
+	}
+
+	@Test(timeout = 10000)
+	public void testNestedBracketsWithEmphasis() throws IOException {
+		String html = transform(repeat("[*", 50000) + repeat("]", 50000));
+		assertEquals("<p>" + repeat("[<em>[</em>", 25000) + repeat("]", 50000) + "</p>\n", html);
+	}
+
+	@Test(timeout = 10000)
+	public void testNestedBracketsWithLinks() throws IOException {
+		String html = transform(repeat("[", 50000) + "a" + repeat("](b)", 50000));
+		assertTrue(html.startsWith("<p>" + repeat("[", 49999) + "<a href=\"b\">a</a>](b)](b)"));
+	}
+
+	@Test(timeout = 10000)
+	public void testUnclosedLinkTitles() throws IOException {
+		assertEquals("<p>" + repeat("[ (](", 100000) + "</p>\n", transform(repeat("[ (](", 100000)));
+		assertEquals("<p>" + repeat("[a](b (", 100000).trim() + "</p>\n", transform(repeat("[a](b (", 100000)));
+	}
+
+	@Test(timeout = 10000)
+	public void testLongShortcutReferences() throws IOException {
+		String text = repeat("[", 50000) + repeat("a", 50000) + repeat("]", 50000);
+		assertEquals("<p>" + text + "</p>\n", transform("[a]: /url\n\n" + text));
+	}
+
+	@Test(timeout = 10000)
+	public void testManyEmphasisOpeners() throws IOException {
+		String text = repeat("*a **a ", 100000).trim();
+		assertEquals("<p>" + text + "</p>\n", transform(text));
+	}
+
+	@Test(timeout = 10000)
+	public void testManyEmphasisClosers() throws IOException {
+		String text = repeat("a* a** ", 100000).trim();
+		assertEquals("<p>" + text + "</p>\n", transform(text));
+	}
+
+	@Test(timeout = 10000)
+	public void testMismatchedEmphasis() throws IOException {
+		String text = repeat("*a_ ", 100000).trim();
+		assertEquals("<p>" + text + "</p>\n", transform(text));
+	}
+
+	@Test(timeout = 10000)
+	public void testNestedStrongEmphasis() throws IOException {
+		String html = transform(repeat("*a **a ", 100000) + "b" + repeat(" a** a*", 100000));
+		assertEquals("<p>" + repeat("<em>a <strong>a ", 100000) + "b"
+				+ repeat(" a</strong> a</em>", 100000) + "</p>\n", html);
+	}
+
+	@Test(timeout = 10000)
+	public void testDeeplyNestedBlockQuotes() throws IOException {
+		String html = transform(repeat("> ", 50000) + "a");
+		assertEquals(repeat("<blockquote>\n", 100) + "<p>" + repeat("&gt; ", 49900) + "a</p>\n"
+				+ repeat("</blockquote>\n", 100), html);
+	}
+
+	@Test(timeout = 10000)
+	public void testDeeplyNestedLists() throws IOException {
+		String html = transform(repeat("- ", 50000) + "a");
+		assertEquals(repeat("<ul>\n<li>\n", 99) + "<ul>\n<li>" + repeat("- ", 49900) + "a</li>\n</ul>\n"
+				+ repeat("</li>\n</ul>\n", 99), html);
+		assertEquals(100, transform(repeat("1. ", 50000) + "a").split("<ol>", -1).length - 1);
+		assertEquals(50, transform(repeat("> - ", 50000) + "a").split("<ul>", -1).length - 1);
+	}
+
+	@Test
+	public void testMaxNesting() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		CMarkTransformer.newTransformer().maxNesting(2).transform(
+				new BufferedReader(new StringReader("> > > a\n> > > b\n\n- - - c\n")), sb);
+		assertEquals("<blockquote>\n<blockquote>\n<p>&gt; a\n&gt; b</p>\n</blockquote>\n</blockquote>\n"
+				+ "<ul>\n<li>\n<ul>\n<li>- c</li>\n</ul>\n</li>\n</ul>\n", sb.toString());
+	}
+}
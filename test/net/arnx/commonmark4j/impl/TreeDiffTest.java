@@ -0,0 +1,107 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.arnx.commonmark4j.CMarkNode;
+import net.arnx.commonmark4j.CMarkNodeType;
+
+public class TreeDiffTest {
+
+	@Test
+	public void testDiff() throws IOException {
+		List<TreeDiff.Edit> edits = TreeDiff.diff(parse("# a\n\nb\n\n- c\n\nd\n"),
+				parse("# a\n\n- c\n\ne\n\nd\n\nf\n"), new HtmlRenderer());
+		assertEquals("[DELETE 1, INSERT 2 <p>e</p>\n, INSERT 4 <p>f</p>\n]", edits.toString());
+
+		edits = TreeDiff.diff(parse("a\n\nb\n"), parse("a\n\n*b*\n"), new HtmlRenderer());
+		assertEquals("[REPLACE 1 <p><em>b</em></p>\n]", edits.toString());
+
+		assertTrue(TreeDiff.diff(parse("a\n\n\n\nb\n"), parse("a\n\nb"), new HtmlRenderer()).isEmpty());
+	}
+
+	@Test
+	public void testPatch() throws IOException {
+		String spec = new String(Files.readAllBytes(Paths.get("base/spec/spec.txt")), "UTF-8");
+		String[] paragraphs = spec.split("\n\n");
+		Random random = new Random(1);
+		for (int round = 0; round < 10; round++) {
+			StringBuilder changed = new StringBuilder();
+			for (String paragraph : paragraphs) {
+				int r = random.nextInt(20);
+				if (r == 0) {
+					continue;
+				} else if (r == 1) {
+					changed.append("inserted ").append(round).append("\n\n");
+				} else if (r == 2) {
+					paragraph = paragraph.replace('a', 'b');
+				}
+				changed.append(paragraph).append("\n\n");
+			}
+
+			Node from = parse(spec);
+			Node to = parse(changed.toString());
+			List<String> patched = render(from);
+			for (TreeDiff.Edit edit : TreeDiff.diff(from, to, new HtmlRenderer())) {
+				switch (edit.operation) {
+				case INSERT:
+					patched.add(edit.index, edit.html);
+					break;
+				case DELETE:
+					patched.remove(edit.index);
+					break;
+				case REPLACE:
+					patched.set(edit.index, edit.html);
+					break;
+				}
+			}
+			assertEquals(render(to), patched);
+		}
+	}
+
+	@Test
+	public void testFrozenHashes() throws IOException {
+		String spec = new String(Files.readAllBytes(Paths.get("base/spec/spec.txt")), "UTF-8");
+		Node doc = parse(spec);
+		Node frozen = doc.freeze();
+		assertTrue(TreeDiff.diff(doc, frozen, new HtmlRenderer()).isEmpty());
+		for (Node block = doc.firstChild(), view = frozen.firstChild(); block != null;
+				block = block.next(), view = view.next()) {
+			assertEquals(TreeDiff.hash(block), TreeDiff.hash(view));
+			assertEquals(TreeDiff.hash(block), TreeDiff.hash(view.freeze()));
+		}
+
+		Node link = (Node)frozen.stream().filter(n -> n.type() == CMarkNodeType.LINK).findFirst().get();
+		Node derived = frozen.derive(link, n -> n.destination("/changed"));
+		List<TreeDiff.Edit> edits = TreeDiff.diff(frozen, derived, new HtmlRenderer());
+		assertEquals(1, edits.size());
+		assertEquals(TreeDiff.Operation.REPLACE, edits.get(0).operation);
+		Node thawed = parse(spec);
+		((Node)thawed.stream().filter(n -> n.type() == CMarkNodeType.LINK).findFirst().get()).destination("/changed");
+		assertTrue(TreeDiff.diff(thawed, derived, new HtmlRenderer()).isEmpty());
+	}
+
+	private static Node parse(String text) throws IOException {
+		return new Parser().parse(new BufferedReader(new StringReader(text)));
+	}
+
+	private static List<String> render(Node doc) throws IOException {
+		List<String> blocks = new ArrayList<>();
+		for (CMarkNode block = doc.firstChild(); block != null; block = block.next()) {
+			StringBuilder sb = new StringBuilder();
+			new HtmlRenderer().render(block, sb);
+			blocks.add(sb.toString());
+		}
+		return blocks;
+	}
+}
@@ -0,0 +1,98 @@
+package net.arnx.commonmark4j.impl;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import net.arnx.commonmark4j.CMarkLimitException;
+import net.arnx.commonmark4j.CMarkTransformer;
+
+public class Utf8OutputTest {
+
+	@Test
+	public void testRender() throws IOException {
+		Node doc;
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get("base/spec/spec.txt"))) {
+			doc = new Parser().parse(reader);
+		}
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		try (Writer writer = new OutputStreamWriter(expected, StandardCharsets.UTF_8)) {
+			new HtmlRenderer().render(doc, writer);
+		}
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		new HtmlRenderer().renderUtf8(doc, actual);
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+
+		actual.reset();
+		new HtmlRenderer().renderUtf8(doc, Channels.newChannel(actual));
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+	}
+
+	@Test
+	public void testLimit() throws IOException {
+		StringBuilder text = new StringBuilder("[a]: /url\n\n");
+		for (int i = 0; i < 10000; i++) {
+			text.append("[a] ");
+		}
+		CMarkTransformer transformer = CMarkTransformer.newTransformer().maxOutputLength(100000);
+
+		StringBuilder expected = new StringBuilder();
+		try {
+			transformer.transform(new BufferedReader(new StringReader(text.toString())), expected);
+			fail();
+		} catch (CMarkLimitException e) {
+			// partly written
+		}
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		try {
+			transformer.transformUtf8(new BufferedReader(new StringReader(text.toString())), actual);
+			fail();
+		} catch (CMarkLimitException e) {
+			// partly written
+		}
+		assertEquals(expected.toString(), new String(actual.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testSurrogates() throws IOException {
+		String s = "a\u00E9\u3042\uD83D\uDE00\uD800b\uDC00\uD83D";
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		try (Writer writer = new OutputStreamWriter(expected, StandardCharsets.UTF_8)) {
+			writer.write(s);
+		}
+
+		ByteBuffer bb = ByteBuffer.allocate(64);
+		Utf8Output out = new Utf8Output(bb);
+		for (int i = 0; i < s.length(); i++) {
+			out.append(s.charAt(i));
+		}
+		out.flush();
+		assertArrayEquals(expected.toByteArray(), Arrays.copyOf(bb.array(), bb.position()));
+
+		char[] big = new char[20000];
+		Arrays.fill(big, 'x');
+		big[8191] = '\uD83D';
+		big[8192] = '\uDE00';
+		big[15000] = '\u00E9';
+		String text = new String(big);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8Output out2 = new Utf8Output(bytes);
+		out2.append(text, 0, 9000).append(text.subSequence(9000, text.length()));
+		out2.flush();
+		assertEquals(text, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+	}
+}